@@ -0,0 +1,155 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+/**
+ * A local stand-in for an image CDN. {@code GET /images/<run>/<n>.jpg} serves image
+ * <i>n</i> of the corpus, wrapping around, so every URL of a run is distinct while
+ * only a few images are held in memory. Latency, bandwidth, the body encoding and
+ * a failure rate can be changed between runs.
+ * <p>
+ * Failures alternate between a 503 and a connection dropped halfway through the
+ * body. Whether a URL fails only depends on its index and the seed, so runs with
+ * the same settings fail the same requests.
+ */
+final class CdnSimulator {
+
+    private final MockWebServer server = new MockWebServer();
+    private final List<byte[]> corpus;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile boolean chunked;
+    private volatile double failureRate;
+    private volatile long seed = 1;
+
+    CdnSimulator(@NonNull List<byte[]> corpus) {
+        if (corpus.isEmpty()) throw new IllegalArgumentException("empty corpus");
+        this.corpus = corpus;
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return respond(request);
+            }
+        });
+    }
+
+    void start() throws IOException {
+        server.start();
+    }
+
+    void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    /**
+     * @return the URL of the <i>index</i>th image of the given run
+     */
+    @NonNull
+    String url(@NonNull String run, int index) {
+        return server.url("/images/" + run + "/" + index + ".jpg").toString();
+    }
+
+    /**
+     * @param latency the time before the response headers are sent
+     */
+    CdnSimulator setLatency(long latency, @NonNull TimeUnit unit) {
+        latencyMillis = unit.toMillis(latency);
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond the rate every response body is sent at, or 0 for no limit
+     */
+    CdnSimulator setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param chunked if <b>true</b>, bodies are sent chunked without a Content-Length
+     */
+    CdnSimulator setChunked(boolean chunked) {
+        this.chunked = chunked;
+        return this;
+    }
+
+    /**
+     * @param failureRate the fraction of requests that fail, between 0 and 1
+     */
+    CdnSimulator setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    CdnSimulator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    long getRequestCount() {
+        return requestCount.get();
+    }
+
+    long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    /**
+     * @return true if the request for the <i>index</i>th image fails with the current
+     * seed and failure rate
+     */
+    boolean fails(int index) {
+        return new Random(seed * 31 + index).nextDouble() < failureRate;
+    }
+
+    private MockResponse respond(RecordedRequest request) {
+        requestCount.incrementAndGet();
+        String path = request.getPath();
+        int index;
+        try {
+            index = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1, path.lastIndexOf('.')));
+        } catch (RuntimeException e) {
+            return new MockResponse().setResponseCode(404);
+        }
+        byte[] image = corpus.get(index % corpus.size());
+        MockResponse response = new MockResponse()
+                .setHeader("Content-Type", "image/jpeg")
+                .setHeader("Cache-Control", "max-age=3600");
+        if (latencyMillis > 0) {
+            response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+        }
+        if (fails(index)) {
+            if (index % 2 == 0) {
+                return response.setResponseCode(503);
+            }
+            response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+        }
+        Buffer body = new Buffer().write(image);
+        if (chunked) {
+            response.setChunkedBody(body, 8192);
+        } else {
+            response.setBody(body);
+        }
+        if (bytesPerSecond > 0) {
+            // ten throttle periods per second keep the stream smooth
+            response.throttleBody(Math.max(1, bytesPerSecond / 10), 100, TimeUnit.MILLISECONDS);
+        }
+        bytesServed.addAndGet(image.length);
+        return response;
+    }
+}
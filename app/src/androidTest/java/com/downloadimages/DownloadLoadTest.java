@@ -0,0 +1,128 @@
+package com.downloadimages;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load test of the download engine against {@link CdnSimulator}. Every scenario
+ * logs a {@link LoadTestRunner.Report} under the tag "DownloadLoadTest"; compare
+ * them before and after a change to the engine. Run it with
+ * <pre>./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.downloadimages.DownloadLoadTest</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class DownloadLoadTest {
+
+    private static final String TAG = "DownloadLoadTest";
+    private static final long TIMEOUT_MINUTES = 5;
+
+    private static CdnSimulator cdn;
+    private static int runCount;
+
+    @BeforeClass
+    public static void startCdn() throws IOException {
+        cdn = new CdnSimulator(ImageCorpus.generate(20, 42));
+        cdn.start();
+    }
+
+    @AfterClass
+    public static void stopCdn() throws IOException {
+        cdn.shutdown();
+    }
+
+    /**
+     * @return a run id that was not used before, so no URL is in the disk cache yet
+     */
+    private static String newRun() {
+        return "run" + System.currentTimeMillis() + "-" + runCount++;
+    }
+
+    private LoadTestRunner.Report run(String name, List<String> urls) throws InterruptedException {
+        return run(new LoadTestRunner(InstrumentationRegistry.getInstrumentation()), name, urls);
+    }
+
+    private LoadTestRunner.Report run(LoadTestRunner runner, String name, List<String> urls)
+            throws InterruptedException {
+        LoadTestRunner.Report report = runner.run(name, urls, TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        Log.i(TAG, report.toString());
+        assertFalse(report.toString(), report.timedOut);
+        assertEquals(urls.size(), report.succeeded + report.failed);
+        return report;
+    }
+
+    private static void reset() {
+        cdn.setLatency(0, TimeUnit.MILLISECONDS).setBandwidth(0).setChunked(false).setFailureRate(0);
+    }
+
+    @Test
+    public void fastCdn() throws Exception {
+        reset();
+        LoadTestRunner.Report report = run("fast", LoadTestRunner.urls(cdn, newRun(), 1000));
+        assertEquals(0, report.failed);
+    }
+
+    @Test
+    public void diskCacheHits() throws Exception {
+        reset();
+        List<String> urls = LoadTestRunner.urls(cdn, newRun(), 300);
+        run("disk cache, cold", urls);
+        long requests = cdn.getRequestCount();
+        LoadTestRunner.Report report = run("disk cache, warm", urls);
+        assertEquals(0, report.failed);
+        assertEquals("fresh entries must not hit the network", requests, cdn.getRequestCount());
+    }
+
+    @Test
+    public void slowThrottledCdn() throws Exception {
+        reset();
+        cdn.setLatency(200, TimeUnit.MILLISECONDS).setBandwidth(512 * 1024);
+        LoadTestRunner.Report report = run("200 ms latency, 512 KB/s", LoadTestRunner.urls(cdn, newRun(), 200));
+        assertEquals(0, report.failed);
+    }
+
+    @Test
+    public void chunkedBodies() throws Exception {
+        reset();
+        cdn.setChunked(true);
+        LoadTestRunner.Report report = run("chunked", LoadTestRunner.urls(cdn, newRun(), 500));
+        assertEquals(0, report.failed);
+    }
+
+    @Test
+    public void chunkedBodiesWithProgress() throws Exception {
+        reset();
+        cdn.setChunked(true);
+        // without a Content-Length the progress is indeterminate, which must not fail the download
+        LoadTestRunner runner = new LoadTestRunner(InstrumentationRegistry.getInstrumentation())
+                .setDisplayProgress(true);
+        LoadTestRunner.Report report = run(runner, "chunked, progress", LoadTestRunner.urls(cdn, newRun(), 100));
+        assertEquals(0, report.failed);
+    }
+
+    @Test
+    public void flakyCdn() throws Exception {
+        reset();
+        cdn.setFailureRate(0.05).setLatency(20, TimeUnit.MILLISECONDS);
+        List<String> urls = LoadTestRunner.urls(cdn, newRun(), 500);
+        int failing = 0;
+        for (int i = 0; i < urls.size(); i++) {
+            if (cdn.fails(i)) failing++;
+        }
+        LoadTestRunner.Report report = run("5% failures", urls);
+        // retries may recover some of the injected failures, but nothing else may fail
+        assertTrue(report.toString(), report.failed <= failing);
+    }
+}
@@ -0,0 +1,65 @@
+package com.downloadimages;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates JPEGs for {@link CdnSimulator}. Every image is a gradient covered with
+ * random shapes, so it compresses about as well as a photo, and the sizes range
+ * from thumbnails to camera resolution.
+ */
+final class ImageCorpus {
+
+    private static final int[][] SIZES = {
+            {160, 120}, {320, 240}, {480, 480}, {640, 480}, {800, 600},
+            {1024, 768}, {1280, 960}, {1600, 1200}, {2048, 1536}, {3264, 2448}
+    };
+
+    private ImageCorpus() {
+    }
+
+    /**
+     * @param count the number of images, cycling through the sizes from the smallest
+     * @return the encoded images
+     */
+    @NonNull
+    static List<byte[]> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> images = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int[] size = SIZES[i % SIZES.length];
+            images.add(generate(size[0], size[1], random));
+        }
+        return images;
+    }
+
+    private static byte[] generate(int width, int height, Random random) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setShader(new LinearGradient(0, 0, width, height, 0xff000000 | random.nextInt(),
+                0xff000000 | random.nextInt(), Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(null);
+        int shapes = width * height / 2000;
+        for (int i = 0; i < shapes; i++) {
+            paint.setColor(random.nextInt());
+            float x = random.nextFloat() * width;
+            float y = random.nextFloat() * height;
+            canvas.drawCircle(x, y, 2 + random.nextFloat() * width / 20, paint);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+}
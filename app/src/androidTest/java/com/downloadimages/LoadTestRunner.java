@@ -0,0 +1,199 @@
+package com.downloadimages;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests a set of URLs through {@link ImageDownloader} all at once, the way a fast
+ * scrolling grid does, and measures how the engine copes: throughput, latency from
+ * the request to the callback, errors and the peak memory use while it runs.
+ */
+final class LoadTestRunner {
+
+    private static final long HEAP_SAMPLE_INTERVAL_MILLIS = 20;
+
+    private final Instrumentation instrumentation;
+    private final Context context;
+    private DecodeOptions decodeOptions = new DecodeOptions(512, 512, DecodeOptions.ScaleMode.FILL, true);
+    private DownloadScheduler.Priority priority = DownloadScheduler.Priority.NORMAL;
+    private boolean displayProgress;
+
+    LoadTestRunner(@NonNull Instrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+        this.context = instrumentation.getTargetContext();
+    }
+
+    LoadTestRunner setDecodeOptions(@NonNull DecodeOptions decodeOptions) {
+        this.decodeOptions = decodeOptions;
+        return this;
+    }
+
+    LoadTestRunner setPriority(@NonNull DownloadScheduler.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * @param displayProgress if <b>true</b>, every download asks for progress callbacks
+     */
+    LoadTestRunner setDisplayProgress(boolean displayProgress) {
+        this.displayProgress = displayProgress;
+        return this;
+    }
+
+    /**
+     * Outcome of one run. Latencies are in milliseconds.
+     */
+    static final class Report {
+        final String name;
+        final int requests;
+        final int succeeded;
+        final int failed;
+        final long elapsedMillis;
+        final Histogram latencyMillis;
+        final long peakJavaHeapBytes;
+        final long peakNativeHeapBytes;
+        final boolean timedOut;
+
+        Report(String name, int requests, int succeeded, int failed, long elapsedMillis,
+               Histogram latencyMillis, long peakJavaHeapBytes, long peakNativeHeapBytes, boolean timedOut) {
+            this.name = name;
+            this.requests = requests;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.elapsedMillis = elapsedMillis;
+            this.latencyMillis = latencyMillis;
+            this.peakJavaHeapBytes = peakJavaHeapBytes;
+            this.peakNativeHeapBytes = peakNativeHeapBytes;
+            this.timedOut = timedOut;
+        }
+
+        double imagesPerSecond() {
+            return elapsedMillis == 0 ? 0 : succeeded * 1000.0 / elapsedMillis;
+        }
+
+        double errorRate() {
+            return requests == 0 ? 0 : (double) failed / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: %d requests in %d ms, %.1f images/s, p50 %d ms, p99 %d ms, max %d ms, "
+                            + "errors %.1f%%, peak heap %d KB java + %d KB native%s",
+                    name, requests, elapsedMillis, imagesPerSecond(), latencyMillis.getPercentile(50),
+                    latencyMillis.getPercentile(99), latencyMillis.getMax(), errorRate() * 100,
+                    peakJavaHeapBytes / 1024, peakNativeHeapBytes / 1024, timedOut ? ", TIMED OUT" : "");
+        }
+    }
+
+    /**
+     * Requests every URL from the main thread and waits until all of them reported
+     * back or the timeout expired. The memory cache is cleared first so every image
+     * goes through the network or the disk cache.
+     */
+    @NonNull
+    Report run(@NonNull String name, @NonNull final List<String> urls, long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(urls.size());
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final Histogram latency = new Histogram();
+        final long[] start = new long[1];
+        HeapSampler heapSampler = new HeapSampler();
+
+        ImageDownloader.getMemoryCache().evictAll();
+        Runtime.getRuntime().gc();
+        heapSampler.start();
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                start[0] = SystemClock.elapsedRealtime();
+                for (int i = 0; i < urls.size(); i++) {
+                    final long requested = SystemClock.elapsedRealtime();
+                    ImageDownloader downloader = new ImageDownloader(context,
+                            new ImageDownloader.OnImageLoaderListener() {
+                                @Override
+                                public void onError(ImageDownloader.ImageError error) {
+                                    latency.record(SystemClock.elapsedRealtime() - requested);
+                                    failed.incrementAndGet();
+                                    done.countDown();
+                                }
+
+                                @Override
+                                public void onProgressChange(int percent) {
+                                }
+
+                                @Override
+                                public void onComplete(Bitmap result, String filename, int pos) {
+                                    latency.record(SystemClock.elapsedRealtime() - requested);
+                                    succeeded.incrementAndGet();
+                                    done.countDown();
+                                }
+
+                                @Override
+                                public void onComplete(String path, String filename) {
+                                }
+                            });
+                    downloader.download(urls.get(i), i, displayProgress, priority, decodeOptions);
+                }
+            }
+        });
+        boolean timedOut = !done.await(timeout, unit);
+        long elapsed = SystemClock.elapsedRealtime() - start[0];
+        heapSampler.interrupt();
+        heapSampler.join();
+        return new Report(name, urls.size(), succeeded.get(), failed.get(), elapsed, latency,
+                heapSampler.peakJavaHeap, heapSampler.peakNativeHeap, timedOut);
+    }
+
+    /**
+     * @return the URLs of the first <i>count</i> images of a run
+     */
+    @NonNull
+    static List<String> urls(@NonNull CdnSimulator cdn, @NonNull String run, int count) {
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add(cdn.url(run, i));
+        }
+        return urls;
+    }
+
+    /**
+     * Polls the used Java heap and the allocated native heap, where bitmap pixels
+     * live since Android 8.0.
+     */
+    private static final class HeapSampler extends Thread {
+        volatile long peakJavaHeap;
+        volatile long peakNativeHeap;
+
+        HeapSampler() {
+            super("HeapSampler");
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peakJavaHeap = Math.max(peakJavaHeap, runtime.totalMemory() - runtime.freeMemory());
+                peakNativeHeap = Math.max(peakNativeHeap, Debug.getNativeHeapAllocatedSize());
+                try {
+                    Thread.sleep(HEAP_SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.downloadimages;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of image downloads started by {@link ImageDownloader#downloadAll(List, Listener)}.
+ * Every item is reported with its index in the requested list, progress is aggregated
+ * over the whole batch and the end of the batch is reported once with the number of
+ * items that succeeded, failed or were cancelled. Items share transfers, caches and
+ * the scheduler with single downloads. If the downloader is bound to an Activity, see
+ * {@link ImageDownloader#bindTo(android.app.Activity)}, the batch stops reporting once
+ * that Activity is destroyed.
+ * <p>
+ * All callbacks are invoked on the main thread, and the handle must only be used from it.
+ */
+public final class BatchDownload {
+
+    /**
+     * Order in which items are handed to {@link Listener#onItemComplete(int, String, Bitmap)}
+     * and {@link Listener#onItemError(int, String, ImageDownloader.ImageError)}.
+     */
+    public enum Mode {
+        /**
+         * Items are delivered as soon as they are decoded.
+         */
+        AS_COMPLETED,
+        /**
+         * Items are delivered in list order. Only {@link #ORDERED_WINDOW} items are
+         * downloaded ahead of the next one due, so few finished items wait in memory.
+         */
+        ORDERED
+    }
+
+    /**
+     * Interface definition for callbacks to be invoked while a batch is downloaded.
+     */
+    public interface Listener {
+        /**
+         * Invoked for every image that was downloaded and decoded. Pass the bitmap to
+         * {@link ImageDownloader#releaseBitmap(Bitmap)} once it is not displayed anymore.
+         *
+         * @param index the position of the image in the requested list
+         */
+        void onItemComplete(int index, @NonNull String url, @NonNull Bitmap bitmap);
+
+        /**
+         * Invoked for every image that could not be downloaded or decoded
+         *
+         * @param index the position of the image in the requested list
+         */
+        void onItemError(int index, @NonNull String url, @NonNull ImageDownloader.ImageError error);
+
+        /**
+         * Invoked whenever an item reads more of its body or finishes
+         *
+         * @param percent       share of the batch that is done, counting running items
+         *                      by the share of their body read
+         * @param bytesRead     body bytes read so far over all items
+         * @param bytesExpected sum of the lengths of all items whose length is known so far
+         */
+        void onProgress(int percent, long bytesRead, long bytesExpected);
+
+        /**
+         * Invoked once, after every item was delivered or the batch was cancelled
+         */
+        void onBatchComplete(int succeeded, int failed, int cancelled);
+    }
+
+    public static final int ORDERED_WINDOW = 16;
+
+    private final ImageDownloader downloader;
+    private final Mode mode;
+    private final DownloadScheduler.Priority priority;
+    private final DecodeOptions decodeOptions;
+    private final Listener listener;
+    private final Item[] items;
+
+    private int started;
+    private int nextToDeliver;
+    private int succeeded;
+    private int failed;
+    private boolean closed;
+    private boolean cancelled;
+    // true while startMore() runs, an item served from the memory cache finishes inside it
+    private boolean starting;
+    private double doneFraction;
+    private long bytesRead;
+    private long bytesExpected;
+
+    BatchDownload(@NonNull ImageDownloader downloader, @NonNull List<String> imageUrls, @NonNull Mode mode,
+                  @NonNull DownloadScheduler.Priority priority, @NonNull DecodeOptions decodeOptions,
+                  @NonNull Listener listener) {
+        this.downloader = downloader;
+        this.mode = mode;
+        this.priority = priority;
+        this.decodeOptions = decodeOptions;
+        this.listener = listener;
+        List<String> urls = new ArrayList<>(imageUrls);
+        this.items = new Item[urls.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new Item(i, urls.get(i));
+        }
+    }
+
+    void start() {
+        startMore();
+        finishIfDone();
+    }
+
+    /**
+     * Stops the batch. Items that have not been delivered yet are not reported anymore,
+     * transfers no one else waits for are dropped from the queue or aborted, and
+     * {@link Listener#onBatchComplete(int, int, int)} is invoked right away.
+     */
+    public void cancel() {
+        if (closed) return;
+        closed = true;
+        cancelled = true;
+        for (Item item : items) {
+            if (!item.delivered && item.pending != null) {
+                ImageDownloader.abandon(item.pending, item);
+            }
+            if (item.bitmap != null) {
+                // finished, but held back for an earlier item
+                ImageDownloader.releaseBitmap(item.bitmap);
+                item.bitmap = null;
+            }
+        }
+        listener.onBatchComplete(succeeded, failed, items.length - succeeded - failed);
+    }
+
+    public int size() {
+        return items.length;
+    }
+
+    public int getSucceededCount() {
+        return succeeded;
+    }
+
+    public int getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * @return the number of body bytes read so far over all items
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public int getPercent() {
+        return items.length == 0 ? 100 : (int) (doneFraction * 100 / items.length);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true once {@link Listener#onBatchComplete(int, int, int)} has been invoked
+     */
+    public boolean isFinished() {
+        return closed;
+    }
+
+    /**
+     * Starts items while the mode allows it. Not reentrant: items that finish right
+     * away only move the window, the running loop then starts the next ones, so a
+     * long batch of cached images does not nest a call per item.
+     */
+    private void startMore() {
+        if (starting) return;
+        starting = true;
+        try {
+            while (!closed && started < items.length
+                    && (mode == Mode.AS_COMPLETED || started < nextToDeliver + ORDERED_WINDOW)) {
+                Item item = items[started++];
+                PendingDownload pending = ImageDownloader.download(item.url, item.index, false, priority,
+                        decodeOptions, item);
+                downloader.bind(pending, item);
+                if (!item.done) {
+                    item.pending = pending;
+                }
+            }
+        } finally {
+            starting = false;
+        }
+    }
+
+    private void onItemFinished(Item item) {
+        doneFraction += 1 - item.fraction;
+        item.fraction = 1;
+        if (mode == Mode.AS_COMPLETED) {
+            deliver(item);
+        } else {
+            while (!closed && nextToDeliver < items.length && items[nextToDeliver].done) {
+                deliver(items[nextToDeliver++]);
+            }
+            startMore();
+        }
+        reportProgress();
+        finishIfDone();
+    }
+
+    private void deliver(Item item) {
+        if (closed) return;
+        item.delivered = true;
+        item.pending = null;
+        if (item.error == null) {
+            succeeded++;
+            Bitmap bitmap = item.bitmap;
+            item.bitmap = null;
+            listener.onItemComplete(item.index, item.url, bitmap);
+        } else {
+            failed++;
+            listener.onItemError(item.index, item.url, item.error);
+        }
+    }
+
+    private void reportProgress() {
+        if (closed) return;
+        listener.onProgress(getPercent(), bytesRead, bytesExpected);
+    }
+
+    private void finishIfDone() {
+        if (closed || succeeded + failed < items.length) return;
+        closed = true;
+        listener.onBatchComplete(succeeded, failed, 0);
+    }
+
+    /**
+     * One image of the batch, subscribed to its transfer like any other caller.
+     */
+    private final class Item implements ImageDownloader.OnImageLoaderListener,
+            ImageDownloader.OnProgressListener {
+        final int index;
+        final String url;
+        PendingDownload pending;
+        boolean done;
+        boolean delivered;
+        Bitmap bitmap;
+        ImageDownloader.ImageError error;
+        long bytesRead;
+        long totalBytes = -1;
+        double fraction;
+
+        Item(int index, String url) {
+            this.index = index;
+            this.url = url;
+        }
+
+        @Override
+        public void onProgress(ProgressEvent event) {
+            if (closed || done) return;
+            long read = event.getBytesRead();
+            long total = event.getTotalBytes();
+            BatchDownload.this.bytesRead += read - bytesRead;
+            bytesRead = read;
+            if (totalBytes < 0 && total > 0) {
+                totalBytes = total;
+                bytesExpected += total;
+            }
+            if (totalBytes > 0) {
+                double newFraction = Math.min(1, (double) bytesRead / totalBytes);
+                doneFraction += newFraction - fraction;
+                fraction = newFraction;
+            }
+            reportProgress();
+        }
+
+        @Override
+        public void onError(ImageDownloader.ImageError error) {
+            if (closed || done) return;
+            done = true;
+            this.error = error;
+            onItemFinished(this);
+        }
+
+        @Override
+        public void onProgressChange(int percent) {
+            // byte progress is aggregated in onProgress
+        }
+
+        @Override
+        public void onComplete(Bitmap result, String filename, int pos) {
+            if (closed || done) {
+                ImageDownloader.releaseBitmap(result);
+                return;
+            }
+            done = true;
+            bitmap = result;
+            onItemFinished(this);
+        }
+
+        @Override
+        public void onComplete(String path, String filename) {
+            // batches only download bitmaps
+        }
+    }
+}
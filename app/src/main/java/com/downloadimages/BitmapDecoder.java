@@ -0,0 +1,157 @@
+package com.downloadimages;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decodes bitmaps at the smallest resolution that still covers the requested
+ * {@link DecodeOptions}. A bounds-only pass reads the image dimensions first, then
+ * the image is decoded with the largest power-of-two {@code inSampleSize} that
+ * keeps it at least as large as the target. When a {@link BitmapPool} is given,
+ * the pixels are decoded into a pooled bitmap where possible. When a
+ * {@link MemoryBudget} is given, the size the bounds predict is reserved from it
+ * for the time of the decode, and a decode that is cancelled while it waits for
+ * memory returns null.
+ */
+final class BitmapDecoder {
+
+    private static final String MIME_JPEG = "image/jpeg";
+
+    private BitmapDecoder() {
+    }
+
+    static Bitmap decodeFile(@NonNull final String path, @NonNull DecodeOptions decodeOptions,
+                             @Nullable BitmapPool pool, @Nullable MemoryBudget budget,
+                             @Nullable MemoryBudget.Cancellation cancellation) {
+        return decode(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFile(path, options);
+            }
+        }, decodeOptions, pool, budget, cancellation);
+    }
+
+    static Bitmap decodeByteArray(@NonNull final byte[] data, final int offset, final int length,
+                                  @NonNull DecodeOptions decodeOptions, @Nullable BitmapPool pool,
+                                  @Nullable MemoryBudget budget,
+                                  @Nullable MemoryBudget.Cancellation cancellation) {
+        return decode(new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(data, offset, length, options);
+            }
+        }, decodeOptions, pool, budget, cancellation);
+    }
+
+    /**
+     * Something that can be decoded repeatedly, e.g. once for its bounds and once for its pixels.
+     */
+    private interface Source {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    private static Bitmap decode(Source source, DecodeOptions decodeOptions, BitmapPool pool,
+                                 MemoryBudget budget, MemoryBudget.Cancellation cancellation) {
+        if (decodeOptions.isOriginal() && pool == null && budget == null) {
+            return source.decode(null);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (!prepare(options, decodeOptions)) return null;
+        if (budget == null) {
+            return decode(source, options, pool);
+        }
+        MemoryBudget.Reservation reservation = budget.reserveDecode(decodedByteCount(
+                options.outWidth, options.outHeight, options.inSampleSize, options.inPreferredConfig), cancellation);
+        if (reservation == null) return null;
+        try {
+            return decode(source, options, pool);
+        } finally {
+            reservation.release();
+        }
+    }
+
+    /**
+     * Decodes the pixels with options prepared by a bounds pass.
+     */
+    private static Bitmap decode(Source source, BitmapFactory.Options options, BitmapPool pool) {
+        if (pool == null) {
+            return source.decode(options);
+        }
+
+        options.inMutable = true;
+        // before KitKat inBitmap only works for images decoded at their original size
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || options.inSampleSize == 1) {
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = pool.get(width, height, options.inPreferredConfig);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = source.decode(options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) throw e;
+            // the pooled bitmap did not fit after all, decode into a new one
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = source.decode(options);
+        }
+        if (bitmap != null && bitmap != options.inBitmap) {
+            pool.recordAllocation(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Turns the result of a bounds-only pass into the options for the real decode.
+     *
+     * @return false if the bounds could not be read
+     */
+    private static boolean prepare(BitmapFactory.Options options, DecodeOptions decodeOptions) {
+        if (options.outWidth <= 0 || options.outHeight <= 0) return false;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = decodeOptions.hasTargetSize()
+                ? calculateInSampleSize(options.outWidth, options.outHeight, decodeOptions) : 1;
+        // JPEG has no alpha channel, so 16 bits per pixel lose only color depth
+        options.inPreferredConfig = decodeOptions.isPreferLowBitDepth() && MIME_JPEG.equals(options.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        return true;
+    }
+
+    /**
+     * @return the size of the bitmap an image of the given dimensions decodes to
+     */
+    static long decodedByteCount(int width, int height, int inSampleSize, Bitmap.Config config) {
+        long sampledWidth = (width + inSampleSize - 1) / inSampleSize;
+        long sampledHeight = (height + inSampleSize - 1) / inSampleSize;
+        return sampledWidth * sampledHeight * (config == Bitmap.Config.RGB_565 ? 2 : 4);
+    }
+
+    /**
+     * @return the largest power of two that keeps the decoded image at least as
+     * large as the target for the requested scale mode
+     */
+    static int calculateInSampleSize(int width, int height, @NonNull DecodeOptions decodeOptions) {
+        int targetWidth = decodeOptions.getTargetWidth();
+        int targetHeight = decodeOptions.getTargetHeight();
+        int inSampleSize = 1;
+        if (decodeOptions.getScaleMode() == DecodeOptions.ScaleMode.FILL) {
+            // both sides have to cover the target
+            while (width / (inSampleSize * 2) >= targetWidth
+                    && height / (inSampleSize * 2) >= targetHeight) {
+                inSampleSize *= 2;
+            }
+        } else {
+            // the longer side relative to the target decides
+            while (width / (inSampleSize * 2) >= targetWidth
+                    || height / (inSampleSize * 2) >= targetHeight) {
+                inSampleSize *= 2;
+            }
+        }
+        return inSampleSize;
+    }
+}
@@ -0,0 +1,207 @@
+package com.downloadimages;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * In-memory LRU cache of decoded bitmaps. Entries are keyed by the SHA-256 digest
+ * of the image's content, or its URL while that is not known, and the decode size.
+ * A small index maps URLs to digests, so images served under several URLs share
+ * one bitmap. Entries are accounted by {@link Bitmap#getByteCount()}, so the budget
+ * is a byte budget rather than an entry count.
+ * <p>
+ * Bitmaps handed out of the cache are counted with {@link #acquire(Bitmap)} until they
+ * are given back with {@link #release(Bitmap)}. Only a bitmap that has left the cache
+ * and is not referenced anymore goes to the {@link BitmapPool}, where later decodes
+ * overwrite its pixels. A bitmap that is never released is left to the garbage collector.
+ */
+public final class BitmapMemoryCache extends LruCache<String, Bitmap>
+        implements MemoryPressure.Trimmable {
+
+    /**
+     * Share of the app's heap the cache may use
+     */
+    private static final int HEAP_FRACTION = 8;
+    /**
+     * Size of the bitmap pool relative to the cache
+     */
+    private static final int POOL_FRACTION = 2;
+    /**
+     * URLs whose digest is remembered
+     */
+    private static final int DIGEST_INDEX_SIZE = 2048;
+
+    private final BitmapPool bitmapPool;
+    private volatile int sizeLimit;
+    private final LruCache<String, String> digests = new LruCache<>(DIGEST_INDEX_SIZE);
+    // weak, a bitmap its holder never released must not be kept alive by the count
+    private final Map<Bitmap, References> references = new WeakHashMap<>();
+
+    /**
+     * Outstanding references to a bitmap, and whether it has left the cache meanwhile.
+     */
+    private static final class References {
+        int count;
+        boolean removed;
+    }
+
+    public BitmapMemoryCache(int maxBytes) {
+        this(maxBytes, new BitmapPool(maxBytes / POOL_FRACTION));
+    }
+
+    public BitmapMemoryCache(int maxBytes, @NonNull BitmapPool bitmapPool) {
+        super(maxBytes);
+        this.bitmapPool = bitmapPool;
+        this.sizeLimit = maxBytes;
+    }
+
+    public int getSizeLimit() {
+        return sizeLimit;
+    }
+
+    /**
+     * Lowers the bytes the cache keeps below {@link #maxSize()}, e.g. while memory is
+     * short. Entries above it are dropped right away, and after every
+     * {@link #trimToSizeLimit()}.
+     */
+    @Override
+    public void setSizeLimit(int sizeLimit) {
+        this.sizeLimit = Math.max(0, Math.min(sizeLimit, maxSize()));
+        trimToSizeLimit();
+    }
+
+    /**
+     * Drops the least recently used entries until the cache is within its size limit.
+     * {@link #put(Object, Object)} only keeps it within {@link #maxSize()}.
+     */
+    public void trimToSizeLimit() {
+        if (size() <= sizeLimit) return;
+        // the snapshot is ordered from least to most recently used
+        for (String key : snapshot().keySet()) {
+            if (size() <= sizeLimit) break;
+            remove(key);
+        }
+    }
+
+    /**
+     * Looks the bitmap up and takes a reference to it in one step, so it cannot be
+     * pooled between the two.
+     *
+     * @return the bitmap, to be given back with {@link #release(Bitmap)}, or null if
+     * it is not cached
+     */
+    @Nullable
+    public Bitmap getAndAcquire(@NonNull String key) {
+        synchronized (references) {
+            Bitmap bitmap = get(key);
+            if (bitmap != null) {
+                addReference(bitmap).removed = false;
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Takes a reference to the bitmap, keeping it out of the pool until it is released.
+     * Must be called before a bitmap is put into the cache if it is handed out after,
+     * since it may be evicted right away.
+     */
+    public void acquire(@NonNull Bitmap bitmap) {
+        synchronized (references) {
+            addReference(bitmap);
+        }
+    }
+
+    private References addReference(Bitmap bitmap) {
+        References refs = references.get(bitmap);
+        if (refs == null) {
+            refs = new References();
+            references.put(bitmap, refs);
+        }
+        refs.count++;
+        return refs;
+    }
+
+    /**
+     * Gives back a reference taken with {@link #acquire(Bitmap)} or
+     * {@link #getAndAcquire(String)}. Once the last one is released after the bitmap
+     * left the cache, it goes to the pool.
+     */
+    public void release(@NonNull Bitmap bitmap) {
+        synchronized (references) {
+            References refs = references.get(bitmap);
+            if (refs == null || --refs.count > 0) return;
+            references.remove(bitmap);
+            if (refs.removed) {
+                bitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * @return the pool that receives bitmaps that left this cache unreferenced
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * Remembers the digest of the content served for the URL.
+     */
+    public void putDigest(@NonNull String url, @NonNull String digest) {
+        digests.put(url, digest);
+    }
+
+    /**
+     * @return the digest of the content last served for the URL, or null if it is not known
+     */
+    @Nullable
+    public String getDigest(@NonNull String url) {
+        return digests.get(url);
+    }
+
+    /**
+     * Creates a cache sized to an eighth of the device's memory class.
+     */
+    public static BitmapMemoryCache create(@NonNull Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        return new BitmapMemoryCache(memoryClassBytes / HEAP_FRACTION);
+    }
+
+    /**
+     * Creates a cache sized to an eighth of the maximum heap, for callers
+     * without a {@link Context}.
+     */
+    public static BitmapMemoryCache create() {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        return new BitmapMemoryCache((int) Math.min(Integer.MAX_VALUE, maxHeap / HEAP_FRACTION));
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+        // putting a bitmap again under its key replaces it with itself
+        if (oldValue == newValue) return;
+        synchronized (references) {
+            References refs = references.get(oldValue);
+            if (refs == null) {
+                bitmapPool.put(oldValue);
+            } else {
+                // pooled once the last holder releases it
+                refs.removed = true;
+            }
+        }
+    }
+}
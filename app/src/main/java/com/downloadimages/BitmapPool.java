@@ -0,0 +1,205 @@
+package com.downloadimages;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps that decoders reuse through
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} instead of allocating
+ * new pixel memory for every image. Bitmaps are bucketed by their allocation
+ * size; on KitKat and later any bitmap at least as large as the request can be
+ * reused, before that only one with the exact same dimensions and config.
+ *
+ * <p>Bitmaps handed to {@link #put(Bitmap)} must no longer be displayed, as their
+ * pixels will be overwritten by the next decode that reuses them.
+ * {@link BitmapMemoryCache} only hands over bitmaps nobody holds a reference to.
+ */
+public final class BitmapPool implements MemoryPressure.Trimmable {
+
+    /**
+     * A pooled bitmap is only used for a request of at least 1 / MAX_SIZE_MULTIPLE
+     * of its size, so small images don't pin large allocations
+     */
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private final int maxBytes;
+    private int sizeLimit;
+    private int currentBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long putCount;
+    private long evictionCount;
+    private long allocationCount;
+    private long allocatedBytes;
+
+    public BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+        this.sizeLimit = maxBytes;
+    }
+
+    /**
+     * Returns a pooled bitmap that can be used as {@code inBitmap} to decode an
+     * image of the given dimensions, removing it from the pool.
+     *
+     * @return the bitmap or null if none fits
+     */
+    @Nullable
+    public synchronized Bitmap get(int width, int height, @NonNull Bitmap.Config config) {
+        int requiredBytes = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> bucket = buckets.ceilingEntry(requiredBytes);
+        while (bucket != null && bucket.getKey() <= requiredBytes * MAX_SIZE_MULTIPLE) {
+            for (Bitmap candidate : bucket.getValue()) {
+                if (canReuse(candidate, width, height, config)) {
+                    bucket.getValue().remove(candidate);
+                    if (bucket.getValue().isEmpty()) {
+                        buckets.remove(bucket.getKey());
+                    }
+                    currentBytes -= bucket.getKey();
+                    hitCount++;
+                    return candidate;
+                }
+            }
+            bucket = buckets.higherEntry(bucket.getKey());
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Offers a bitmap for reuse. Immutable or recycled bitmaps, and bitmaps that do
+     * not fit the budget, are ignored.
+     */
+    public synchronized void put(@NonNull Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) return;
+        int size = allocationSize(bitmap);
+        if (size > sizeLimit) return;
+        ArrayDeque<Bitmap> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        currentBytes += size;
+        putCount++;
+        trimToSize(sizeLimit);
+    }
+
+    /**
+     * Drops pooled bitmaps, largest first, until the pool holds at most <i>size</i> bytes.
+     */
+    public synchronized void trimToSize(int size) {
+        while (currentBytes > size && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> largest = buckets.lastEntry();
+            largest.getValue().removeFirst();
+            if (largest.getValue().isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            currentBytes -= largest.getKey();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Records a decode that had to allocate new pixel memory because no pooled
+     * bitmap could be reused.
+     */
+    synchronized void recordAllocation(@NonNull Bitmap bitmap) {
+        allocationCount++;
+        allocatedBytes += allocationSize(bitmap);
+    }
+
+    public synchronized int size() {
+        return currentBytes;
+    }
+
+    @Override
+    public int maxSize() {
+        return maxBytes;
+    }
+
+    public synchronized int getSizeLimit() {
+        return sizeLimit;
+    }
+
+    /**
+     * Lowers the bytes the pool keeps below {@link #maxSize()}, e.g. while memory is
+     * short, dropping pooled bitmaps above it.
+     */
+    @Override
+    public synchronized void setSizeLimit(int sizeLimit) {
+        this.sizeLimit = Math.max(0, Math.min(sizeLimit, maxBytes));
+        trimToSize(this.sizeLimit);
+    }
+
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    public synchronized long missCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the share of {@link #get(int, int, Bitmap.Config)} calls that returned a bitmap
+     */
+    public synchronized float hitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 0f : (float) hitCount / requests;
+    }
+
+    /**
+     * @return the number of decodes that allocated a new bitmap
+     */
+    public synchronized long allocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return the total pixel memory allocated by decodes that could not reuse a bitmap
+     */
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + currentBytes + ",maxSize=" + maxBytes
+                + ",hits=" + hitCount + ",misses=" + missCount + ",puts=" + putCount
+                + ",evictions=" + evictionCount + ",allocations=" + allocationCount
+                + ",allocatedBytes=" + allocatedBytes + "]";
+    }
+
+    private static boolean canReuse(Bitmap candidate, int width, int height, Bitmap.Config config) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // the byte count is guaranteed by the bucket lookup
+            return true;
+        }
+        return candidate.getWidth() == width && candidate.getHeight() == height
+                && candidate.getConfig() == config;
+    }
+
+    static int allocationSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (config == Bitmap.Config.RGB_565) return 2;
+        return 4;
+    }
+}
@@ -0,0 +1,78 @@
+package com.downloadimages;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the transfers stopped because every caller cancelled them, and the bytes
+ * that were not downloaded as a result. Transfers dropped from the queue are counted
+ * but not sized, their length is only known once the response arrives. Listeners
+ * released because their owner was destroyed, see {@link ImageDownloader#bindTo},
+ * are counted separately when their transfer went on.
+ */
+public final class CancellationStats {
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong abortedCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong releasedCount = new AtomicLong();
+
+    void onDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    /**
+     * @param remainingBytes the bytes of the body that were not read, or -1 if its length was not known
+     */
+    void onAborted(long remainingBytes) {
+        abortedCount.incrementAndGet();
+        if (remainingBytes > 0) {
+            bytesSaved.addAndGet(remainingBytes);
+        }
+    }
+
+    void onReleased() {
+        releasedCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of transfers taken off the queue before they started
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return the number of running transfers whose connection was closed
+     */
+    public long getAbortedCount() {
+        return abortedCount.get();
+    }
+
+    /**
+     * @return the body bytes aborted transfers did not read, counting those with a known length
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return the number of listeners detached from a transfer that went on, because
+     * their owner was recreated for a configuration change
+     */
+    public long getReleasedCount() {
+        return releasedCount.get();
+    }
+
+    public void reset() {
+        droppedCount.set(0);
+        abortedCount.set(0);
+        bytesSaved.set(0);
+        releasedCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "CancellationStats{dropped=" + getDroppedCount() + " aborted=" + getAbortedCount()
+                + " saved=" + getBytesSaved() / 1024 + "KB released=" + getReleasedCount() + "}";
+    }
+}
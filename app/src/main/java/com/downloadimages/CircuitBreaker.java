@@ -0,0 +1,167 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending requests to a host that keeps failing. After
+ * {@link #getFailureThreshold()} consecutive transient failures the host's circuit
+ * opens and requests fail fast. Once the open period is over a single probe request
+ * is let through: if it succeeds the circuit closes, otherwise it opens again for
+ * twice as long, up to {@link #MAX_OPEN_MULTIPLIER} times the initial period.
+ * <p>
+ * Times are passed in as {@link System#nanoTime()} values.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        /**
+         * Requests go through
+         */
+        CLOSED,
+        /**
+         * Requests fail fast
+         */
+        OPEN,
+        /**
+         * A single probe request is allowed to find out whether the host is back
+         */
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 10000;
+    static final int MAX_OPEN_MULTIPLIER = 16;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    private static final class Host {
+        State state = State.CLOSED;
+        int consecutiveFailures;
+        int trips;
+        long openUntilNanos;
+        long probeStartedNanos;
+        long rejectedCount;
+    }
+
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * @param failureThreshold the consecutive failures that open a host's circuit
+     * @param openMillis       how long the circuit stays open after the first trip
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        if (failureThreshold < 1 || openMillis < 0) {
+            throw new IllegalArgumentException("invalid circuit breaker settings");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @return true if a request to the host may be sent now. In the half-open state
+     * only one caller gets true until the probe reports back or times out.
+     */
+    public synchronized boolean allowRequest(@NonNull String host, long nowNanos) {
+        Host state = hosts.get(host);
+        if (state == null || state.state == State.CLOSED) return true;
+        if (state.state == State.OPEN && nowNanos - state.openUntilNanos >= 0) {
+            state.state = State.HALF_OPEN;
+            state.probeStartedNanos = nowNanos;
+            return true;
+        }
+        if (state.state == State.HALF_OPEN && nowNanos - state.probeStartedNanos >= openNanos) {
+            // the probe never reported back, let another one through
+            state.probeStartedNanos = nowNanos;
+            return true;
+        }
+        state.rejectedCount++;
+        return false;
+    }
+
+    /**
+     * Records a response from the host that shows it is up, including 4xx responses.
+     */
+    public synchronized void onSuccess(@NonNull String host) {
+        hosts.remove(host);
+    }
+
+    /**
+     * Records a transient failure of a request to the host.
+     */
+    public synchronized void onFailure(@NonNull String host, long nowNanos) {
+        Host state = hosts.get(host);
+        if (state == null) {
+            state = new Host();
+            hosts.put(host, state);
+        }
+        state.consecutiveFailures++;
+        if (state.state == State.HALF_OPEN
+                || (state.state == State.CLOSED && state.consecutiveFailures >= failureThreshold)) {
+            state.trips++;
+            long multiplier = Math.min(1L << Math.min(state.trips - 1, 30), MAX_OPEN_MULTIPLIER);
+            open(state, nowNanos + openNanos * multiplier);
+        }
+    }
+
+    /**
+     * Opens the host's circuit until the given time, e.g. when it asked for a pause
+     * longer than the retry policy waits.
+     */
+    public synchronized void openUntil(@NonNull String host, long untilNanos) {
+        Host state = hosts.get(host);
+        if (state == null) {
+            state = new Host();
+            hosts.put(host, state);
+        }
+        if (state.state == State.OPEN && state.openUntilNanos - untilNanos >= 0) return;
+        open(state, untilNanos);
+    }
+
+    private static void open(Host state, long untilNanos) {
+        state.state = State.OPEN;
+        state.openUntilNanos = untilNanos;
+    }
+
+    @NonNull
+    public synchronized State getState(@NonNull String host) {
+        Host state = hosts.get(host);
+        return state == null ? State.CLOSED : state.state;
+    }
+
+    /**
+     * @return the number of requests to the host that failed fast since its circuit last closed
+     */
+    public synchronized long getRejectedCount(@NonNull String host) {
+        Host state = hosts.get(host);
+        return state == null ? 0 : state.rejectedCount;
+    }
+
+    /**
+     * Closes every circuit, e.g. after the device reconnected to a network.
+     */
+    public synchronized void reset() {
+        hosts.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("CircuitBreaker{");
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue().state)
+                    .append('/').append(entry.getValue().consecutiveFailures);
+        }
+        return builder.append(" }").toString();
+    }
+}
@@ -0,0 +1,295 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.downloadimages.utils.BandwidthEstimator;
+
+/**
+ * Adjusts {@link DownloadScheduler#setMaxConcurrent(int)} at runtime from what
+ * the transfers observe, between a configurable floor and ceiling.
+ * <p>
+ * Completed requests are collected into windows of at least {@link #MIN_WINDOW_SIZE}
+ * samples (and at least as many as the current limit). At the end of each window:
+ * <ul>
+ * <li>if the mean time to first byte has grown beyond {@link #LATENCY_TOLERANCE}
+ * times the lowest one seen recently, requests are queueing in some buffer on the
+ * path rather than being served faster, so the limit is cut multiplicatively;</li>
+ * <li>otherwise, if the limit was actually reached and the aggregate throughput
+ * did not drop compared to the previous window, the limit grows by one;</li>
+ * <li>if the last increase cost throughput instead, it is taken back.</li>
+ * </ul>
+ * Read timeouts cut the limit right away. The lowest time to first byte is
+ * forgotten every {@link #MIN_TTFB_RESET_WINDOWS} windows, so a network change
+ * to a slower path does not keep the limit down forever.
+ * <p>
+ * The throughput of a window is the bytes of all its requests over the wall-clock
+ * time they took together, so it measures the link rather than one connection's
+ * share of it. Each window is also reported to the {@link BandwidthEstimator}, if
+ * one is given, even while the controller is disabled.
+ */
+public final class ConcurrencyController {
+
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 16;
+    public static final int MIN_WINDOW_SIZE = 4;
+    public static final double LATENCY_TOLERANCE = 2.0;
+    public static final int MIN_TTFB_RESET_WINDOWS = 20;
+
+    private static final double BACKOFF_RATIO = 0.75;
+    /**
+     * Throughput drops smaller than this are treated as noise
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+    private final DownloadScheduler scheduler;
+    private final BandwidthEstimator bandwidthEstimator;
+    private boolean enabled = true;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private int limit;
+
+    private long minTtfbNanos = Long.MAX_VALUE;
+    private long nextMinTtfbNanos = Long.MAX_VALUE;
+    private int windowsSinceMinTtfbReset;
+
+    private long windowStartNanos = -1;
+    private long windowFirstRequestNanos = Long.MAX_VALUE;
+    private int windowSamples;
+    private long windowTtfbNanos;
+    private long windowBytes;
+    private int windowMaxInFlight;
+    private long lastThroughput = -1;
+    private boolean lastWindowIncreased;
+
+    private long lastWindowTtfbNanos = -1;
+    private int increaseCount;
+    private int decreaseCount;
+
+    public ConcurrencyController(@NonNull DownloadScheduler scheduler) {
+        this(scheduler, null);
+    }
+
+    /**
+     * @param bandwidthEstimator receives the aggregate throughput of every window
+     */
+    public ConcurrencyController(@NonNull DownloadScheduler scheduler,
+                                 @Nullable BandwidthEstimator bandwidthEstimator) {
+        this.scheduler = scheduler;
+        this.bandwidthEstimator = bandwidthEstimator;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, scheduler.getMaxConcurrent()));
+    }
+
+    /**
+     * Sets the range the limit is kept in. The current limit is clamped into it.
+     */
+    public void setLimits(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("invalid limits " + minLimit + ".." + maxLimit);
+        }
+        int applied;
+        synchronized (this) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            limit = Math.max(minLimit, Math.min(maxLimit, limit));
+            applied = enabled ? limit : -1;
+        }
+        apply(applied);
+    }
+
+    /**
+     * @param enabled false to leave {@link DownloadScheduler#setMaxConcurrent(int)} to the caller.
+     *                The windows are still measured for the bandwidth estimator.
+     */
+    public void setEnabled(boolean enabled) {
+        int applied;
+        synchronized (this) {
+            this.enabled = enabled;
+            resetWindow(-1);
+            applied = enabled ? limit : -1;
+        }
+        apply(applied);
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a request that received a response and read its body.
+     *
+     * @param startNanos     {@link System#nanoTime()} when the request was sent
+     * @param firstByteNanos when the response headers arrived
+     * @param endNanos       when the body was read completely
+     * @param bytes          the size of the body
+     * @param inFlight       the number of transfers running when this one finished, itself included
+     * @return true if the request completed a window, so the limit was reconsidered if enabled
+     */
+    public boolean onResponse(long startNanos, long firstByteNanos, long endNanos, long bytes, int inFlight) {
+        int applied = -1;
+        boolean windowEnded = false;
+        long sampleBytes = 0;
+        long sampleNanos = 0;
+        synchronized (this) {
+            long ttfb = firstByteNanos - startNanos;
+            if (windowStartNanos < 0) {
+                windowStartNanos = startNanos;
+            }
+            windowFirstRequestNanos = Math.min(windowFirstRequestNanos, startNanos);
+            minTtfbNanos = Math.min(minTtfbNanos, ttfb);
+            nextMinTtfbNanos = Math.min(nextMinTtfbNanos, ttfb);
+            windowSamples++;
+            windowTtfbNanos += ttfb;
+            windowBytes += bytes;
+            windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+            if (windowSamples >= Math.max(MIN_WINDOW_SIZE, limit)) {
+                sampleBytes = windowBytes;
+                sampleNanos = windowElapsedNanos(endNanos);
+                int previous = limit;
+                endWindow(endNanos);
+                windowEnded = true;
+                if (enabled && limit != previous) applied = limit;
+            }
+        }
+        apply(applied);
+        if (windowEnded && bandwidthEstimator != null) {
+            // outside the lock, the estimator notifies its listeners right away
+            bandwidthEstimator.addSample(sampleBytes, sampleNanos);
+        }
+        return windowEnded;
+    }
+
+    /**
+     * Records a request that timed out, which cuts the limit without waiting for
+     * the window to fill.
+     */
+    public void onTimeout() {
+        int applied = -1;
+        synchronized (this) {
+            if (!enabled) return;
+            int previous = limit;
+            decrease();
+            resetWindow(-1);
+            if (limit != previous) applied = limit;
+        }
+        apply(applied);
+    }
+
+    /**
+     * @return the time the requests of the current window took together. A window
+     * that started while no request was running only counts from its first request.
+     */
+    private long windowElapsedNanos(long endNanos) {
+        return endNanos - Math.max(windowStartNanos, windowFirstRequestNanos);
+    }
+
+    private void endWindow(long endNanos) {
+        long meanTtfb = windowTtfbNanos / windowSamples;
+        long elapsed = windowElapsedNanos(endNanos);
+        long throughput = elapsed > 0 ? (long) (windowBytes * 1e9 / elapsed) : -1;
+        boolean saturated = windowMaxInFlight >= limit;
+        lastWindowTtfbNanos = meanTtfb;
+
+        boolean increased = false;
+        if (enabled) {
+            if (meanTtfb > minTtfbNanos * LATENCY_TOLERANCE) {
+                decrease();
+            } else if (lastWindowIncreased && lastThroughput > 0
+                    && throughput < lastThroughput * (1 - THROUGHPUT_TOLERANCE)) {
+                // the extra transfer only split the same bandwidth, take it back
+                limit = Math.max(minLimit, limit - 1);
+                decreaseCount++;
+            } else if (saturated && limit < maxLimit) {
+                limit++;
+                increaseCount++;
+                increased = true;
+            }
+        }
+        lastThroughput = throughput;
+        lastWindowIncreased = increased;
+        if (++windowsSinceMinTtfbReset >= MIN_TTFB_RESET_WINDOWS) {
+            minTtfbNanos = nextMinTtfbNanos;
+            nextMinTtfbNanos = Long.MAX_VALUE;
+            windowsSinceMinTtfbReset = 0;
+        }
+        resetWindow(endNanos);
+    }
+
+    private void decrease() {
+        int reduced = Math.max(minLimit, (int) (limit * BACKOFF_RATIO));
+        if (reduced < limit) {
+            limit = reduced;
+            decreaseCount++;
+        }
+        lastWindowIncreased = false;
+        lastThroughput = -1;
+    }
+
+    private void resetWindow(long startNanos) {
+        windowStartNanos = startNanos;
+        windowFirstRequestNanos = Long.MAX_VALUE;
+        windowSamples = 0;
+        windowTtfbNanos = 0;
+        windowBytes = 0;
+        windowMaxInFlight = 0;
+    }
+
+    private void apply(int newLimit) {
+        if (newLimit > 0) {
+            scheduler.setMaxConcurrent(newLimit);
+        }
+    }
+
+    /**
+     * @return the number of concurrent transfers currently allowed
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getMinLimit() {
+        return minLimit;
+    }
+
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the lowest time to first byte seen recently, or -1 before the first response
+     */
+    public synchronized long getMinTtfbMillis() {
+        return minTtfbNanos == Long.MAX_VALUE ? -1 : minTtfbNanos / 1000000;
+    }
+
+    /**
+     * @return the mean time to first byte of the last completed window, or -1
+     */
+    public synchronized long getLastWindowTtfbMillis() {
+        return lastWindowTtfbNanos < 0 ? -1 : lastWindowTtfbNanos / 1000000;
+    }
+
+    /**
+     * @return the aggregate throughput of the last completed window in bytes per second, or -1
+     */
+    public synchronized long getLastWindowThroughput() {
+        return lastThroughput;
+    }
+
+    public synchronized int getIncreaseCount() {
+        return increaseCount;
+    }
+
+    public synchronized int getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyController{limit=" + limit + " [" + minLimit + ".." + maxLimit + "]"
+                + ", minTtfb=" + getMinTtfbMillis() + "ms"
+                + ", windowTtfb=" + getLastWindowTtfbMillis() + "ms"
+                + ", throughput=" + lastThroughput + "B/s"
+                + ", increases=" + increaseCount + ", decreases=" + decreaseCount + "}";
+    }
+}
@@ -0,0 +1,92 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Describes the size an image is going to be displayed at, so it can be
+ * decoded at a reduced resolution instead of at full size.
+ */
+public final class DecodeOptions {
+
+    /**
+     * How the decoded image is going to be fitted into the target size.
+     */
+    public enum ScaleMode {
+        /**
+         * The whole image has to fit inside the target (centerInside)
+         */
+        FIT,
+        /**
+         * The image has to cover the whole target and may be cropped (centerCrop)
+         */
+        FILL
+    }
+
+    /**
+     * Decodes images at their full resolution in ARGB_8888
+     */
+    public static final DecodeOptions ORIGINAL = new DecodeOptions(0, 0, ScaleMode.FIT, false);
+
+    private final int targetWidth;
+    private final int targetHeight;
+    private final ScaleMode scaleMode;
+    private final boolean preferLowBitDepth;
+
+    /**
+     * @param targetWidth       width the image is displayed at, in pixels
+     * @param targetHeight      height the image is displayed at, in pixels
+     * @param scaleMode         how the image is fitted into the target
+     * @param preferLowBitDepth if <b>true</b>, opaque JPEGs are decoded as RGB_565,
+     *                          halving their memory at a small loss of color depth
+     */
+    public DecodeOptions(int targetWidth, int targetHeight, @NonNull ScaleMode scaleMode,
+                         boolean preferLowBitDepth) {
+        if (targetWidth < 0 || targetHeight < 0) {
+            throw new IllegalArgumentException("negative target size");
+        }
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.scaleMode = scaleMode;
+        this.preferLowBitDepth = preferLowBitDepth;
+    }
+
+    public int getTargetWidth() {
+        return targetWidth;
+    }
+
+    public int getTargetHeight() {
+        return targetHeight;
+    }
+
+    public ScaleMode getScaleMode() {
+        return scaleMode;
+    }
+
+    public boolean isPreferLowBitDepth() {
+        return preferLowBitDepth;
+    }
+
+    /**
+     * @return true if these options request a downsampled decode
+     */
+    public boolean hasTargetSize() {
+        return targetWidth > 0 && targetHeight > 0;
+    }
+
+    /**
+     * @return true if images are decoded exactly as with {@link #ORIGINAL}
+     */
+    public boolean isOriginal() {
+        return !hasTargetSize() && !preferLowBitDepth;
+    }
+
+    /**
+     * @return a string that tells apart bitmaps decoded with different options,
+     * used as part of cache keys
+     */
+    String toKey() {
+        // without a target size the scale mode does not change the bitmap
+        return (hasTargetSize() ? targetWidth + "x" + targetHeight + "-" + scaleMode : "full")
+                + (preferLowBitDepth ? "-565" : "");
+    }
+}
@@ -0,0 +1,170 @@
+package com.downloadimages;
+
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes downloaded images on a pool sized to the CPU cores, separate from the
+ * {@link DownloadScheduler} threads that read the network. A download hands its
+ * body over with {@link #execute(Runnable)} and frees its network slot right away,
+ * so slow decodes do not hold connections idle and slow connections do not keep
+ * cores idle.
+ * <p>
+ * At most {@link #getCapacity()} jobs are running or waiting. A full stage blocks
+ * the handing thread until a decoder is free, so the network side can not pile up
+ * more undecoded bodies than the decoders keep up with.
+ */
+public final class DecodeStage {
+
+    /**
+     * Jobs allowed to wait per decode thread
+     */
+    public static final int QUEUED_PER_THREAD = 2;
+
+    private final ThreadPoolExecutor executor;
+    private final Semaphore slots;
+    private final AtomicInteger queuedAndRunning = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private int threadCount;
+    private final int capacity;
+
+    /**
+     * Creates a stage with one thread per available core.
+     */
+    public DecodeStage() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public DecodeStage(int threadCount) {
+        this(threadCount, threadCount * (1 + QUEUED_PER_THREAD));
+    }
+
+    /**
+     * @param threadCount the number of images decoded in parallel
+     * @param capacity    the number of jobs running or waiting at which
+     *                    {@link #execute(Runnable)} blocks, at least <i>threadCount</i>
+     */
+    public DecodeStage(int threadCount, int capacity) {
+        if (threadCount < 1 || capacity < threadCount) {
+            throw new IllegalArgumentException("threadCount must be >= 1 and capacity >= threadCount");
+        }
+        this.threadCount = threadCount;
+        this.capacity = capacity;
+        this.slots = new Semaphore(capacity, true);
+        // the queue is unbounded, the semaphore bounds it
+        this.executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DecodeThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the job on a decode thread, blocking while the stage is full.
+     * Must not be called from a decode job.
+     */
+    public void execute(@NonNull final Runnable job) {
+        if (!slots.tryAcquire()) {
+            long start = System.nanoTime();
+            slots.acquireUninterruptibly();
+            blockedCount.incrementAndGet();
+            blockedNanos.addAndGet(System.nanoTime() - start);
+        }
+        queuedAndRunning.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } finally {
+                    queuedAndRunning.decrementAndGet();
+                    completedCount.incrementAndGet();
+                    slots.release();
+                }
+            }
+        });
+    }
+
+    public synchronized int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Changes the number of images decoded in parallel. Decodes that are already
+     * running are not interrupted. The capacity is not changed.
+     */
+    public synchronized void setThreadCount(int threadCount) {
+        if (threadCount < 1 || threadCount > capacity) {
+            throw new IllegalArgumentException("threadCount must be between 1 and " + capacity);
+        }
+        if (threadCount > this.threadCount) {
+            executor.setMaximumPoolSize(threadCount);
+            executor.setCorePoolSize(threadCount);
+        } else {
+            executor.setCorePoolSize(threadCount);
+            executor.setMaximumPoolSize(threadCount);
+        }
+        this.threadCount = threadCount;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of jobs waiting or being decoded
+     */
+    public int pendingCount() {
+        return queuedAndRunning.get();
+    }
+
+    public long completedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * @return how often a download had to wait for the stage to have room
+     */
+    public long blockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * @return the total time downloads waited for the stage to have room
+     */
+    public long blockedNanos() {
+        return blockedNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeStage{threads=" + getThreadCount() + " pending=" + pendingCount() + "/" + capacity
+                + " completed=" + completedCount() + " blocked=" + blockedCount() + " ("
+                + blockedNanos() / 1000000 + "ms)}";
+    }
+
+    private static final class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageDecoder #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
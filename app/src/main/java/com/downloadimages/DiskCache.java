@@ -0,0 +1,671 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.downloadimages.utils.Utility;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Size-capped disk cache of downloaded image bodies. Entries are keyed by a
+ * hash of their URL and evicted least recently used first. Bodies are stored
+ * once per content, as blobs named by their SHA-256 digest, and each entry
+ * points to its blob; the same image served under several URLs takes its space
+ * once and is removed with the last entry pointing to it. Every change is
+ * appended to a journal so the index and LRU order survive a restart without
+ * scanning the directory. Each entry keeps the HTTP validators it was served
+ * with, so stale entries can be revalidated with a conditional request instead
+ * of being downloaded again. A body is kept on disk while an {@link Entry} for
+ * it is open, even if the cache evicts it in the meantime.
+ *
+ * <p>Journal format, one operation per line after a two line header:
+ * <pre>
+ *     CLEAN &lt;key&gt; &lt;digest&gt; &lt;size&gt;
+ *     READ &lt;key&gt;
+ *     REMOVE &lt;key&gt;
+ * </pre>
+ */
+public final class DiskCache {
+
+    public static final long DEFAULT_MAX_SIZE = 50L * 1024 * 1024;
+
+    private static final String TAG = "DiskCache";
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String MAGIC = "DownloadImages.DiskCache";
+    private static final String VERSION = "2";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final String META_SUFFIX = ".meta";
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long maxSize;
+    // URL key to the digest of its body
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(0, 0.75f, true);
+    private final Map<String, Blob> blobs = new HashMap<>();
+    // digest to the number of open entries reading it
+    private final Map<String, Integer> pins = new HashMap<>();
+    private final AtomicInteger nextTempId = new AtomicInteger();
+    private Writer journalWriter;
+    private long size;
+    private int redundantOpCount;
+    private long deduplicatedBytes;
+
+    /**
+     * A stored body and the number of entries pointing to it.
+     */
+    private static final class Blob {
+        final long size;
+        int references;
+
+        Blob(long size) {
+            this.size = size;
+        }
+    }
+
+    private DiskCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Opens the cache in the given directory, creating it if needed. This reads
+     * the journal and must not be called on the main thread.
+     */
+    public static DiskCache open(@NonNull File directory, long maxSize) throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        DiskCache cache = new DiskCache(directory, maxSize);
+        File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                cache.readJournal(journal);
+                cache.journalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journal, true), UTF_8));
+                cache.deleteUnusedFiles();
+                return cache;
+            } catch (IOException e) {
+                Log.w(TAG, "journal is corrupt, clearing cache", e);
+                cache.deleteContents();
+            }
+        }
+        cache.rebuildJournal();
+        return cache;
+    }
+
+    /**
+     * A cached body together with the validators it was stored with. The body is
+     * not deleted before the entry is closed, so it has to be closed once the body
+     * was read.
+     */
+    public static final class Entry implements Closeable {
+        private final DiskCache cache;
+        private final File file;
+        private final Metadata metadata;
+        private final String digest;
+        private boolean closed;
+
+        Entry(DiskCache cache, File file, Metadata metadata, String digest) {
+            this.cache = cache;
+            this.file = file;
+            this.metadata = metadata;
+            this.digest = digest;
+        }
+
+        /**
+         * @return the body, which other entries with the same content share. It must not be modified.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the lowercase hex SHA-256 digest of the body
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        public Metadata getMetadata() {
+            return metadata;
+        }
+
+        /**
+         * Lets the cache delete the body if it was evicted while this entry was open.
+         */
+        @Override
+        public void close() {
+            synchronized (cache) {
+                if (closed) return;
+                closed = true;
+                cache.unpin(digest);
+            }
+        }
+    }
+
+    /**
+     * HTTP caching metadata of an entry.
+     */
+    public static final class Metadata {
+        private static final String KEY_URL = "url";
+        private static final String KEY_ETAG = "etag";
+        private static final String KEY_LAST_MODIFIED = "lastModified";
+        private static final String KEY_EXPIRES_AT = "expiresAt";
+
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long expiresAt;
+
+        public Metadata(@NonNull String url, @Nullable String etag, @Nullable String lastModified,
+                        long expiresAt) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Builds the metadata from the headers of a 200 or 304 response.
+         *
+         * @return the metadata or null if the response must not be stored
+         */
+        @Nullable
+        public static Metadata fromResponse(@NonNull String url, @NonNull Response response) {
+            String cacheControl = response.header("Cache-Control");
+            long maxAgeSeconds = 0;
+            if (cacheControl != null) {
+                for (String directive : cacheControl.toLowerCase(Locale.US).split(",")) {
+                    directive = directive.trim();
+                    if (directive.equals("no-store")) {
+                        return null;
+                    } else if (directive.equals("no-cache")) {
+                        maxAgeSeconds = 0;
+                        break;
+                    } else if (directive.startsWith("max-age=")) {
+                        try {
+                            maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()));
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+            }
+            return new Metadata(url, response.header("ETag"),
+                    response.header("Last-Modified"),
+                    System.currentTimeMillis() + maxAgeSeconds * 1000);
+        }
+
+        /**
+         * @return a copy of this metadata with the freshness and validators of a
+         * 304 response, keeping the old validators where the response has none
+         */
+        public Metadata revalidated(@Nullable Metadata notModified) {
+            if (notModified == null) return this;
+            return new Metadata(url,
+                    notModified.etag != null ? notModified.etag : etag,
+                    notModified.lastModified != null ? notModified.lastModified : lastModified,
+                    notModified.expiresAt);
+        }
+
+        /**
+         * @return true if the entry may be used without contacting the server
+         */
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        /**
+         * Adds If-None-Match / If-Modified-Since headers so the server can
+         * answer with 304 Not Modified.
+         */
+        public void addConditionalHeaders(@NonNull Request.Builder request) {
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        private void writeTo(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(KEY_URL, url);
+            if (etag != null) properties.setProperty(KEY_ETAG, etag);
+            if (lastModified != null) properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+            properties.setProperty(KEY_EXPIRES_AT, String.valueOf(expiresAt));
+            OutputStream out = new FileOutputStream(file);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+        }
+
+        private static Metadata readFrom(File file) throws IOException {
+            Properties properties = new Properties();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            try {
+                return new Metadata(properties.getProperty(KEY_URL),
+                        properties.getProperty(KEY_ETAG),
+                        properties.getProperty(KEY_LAST_MODIFIED),
+                        Long.parseLong(properties.getProperty(KEY_EXPIRES_AT, "0")));
+            } catch (NumberFormatException e) {
+                throw new IOException("unreadable metadata " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Writes a new body for a URL. The body is written to a temporary file and
+     * only becomes visible when {@link #commit(Metadata)} is called.
+     */
+    public final class Editor {
+        private final String key;
+        private final File tempFile;
+        private boolean done;
+
+        Editor(String key, File tempFile) {
+            this.key = key;
+            this.tempFile = tempFile;
+        }
+
+        /**
+         * @return the file the body has to be written to
+         */
+        public File getFile() {
+            return tempFile;
+        }
+
+        public OutputStream newOutputStream() throws IOException {
+            return new FileOutputStream(tempFile);
+        }
+
+        /**
+         * Publishes the written body with the given metadata, replacing any
+         * previous entry for the URL. The body is read once to compute its digest.
+         * A body larger than the whole cache is not stored, and the previous entry
+         * is removed.
+         *
+         * @return the committed entry, which has to be closed
+         * @throws IOException if the body could not be stored
+         */
+        public Entry commit(@NonNull Metadata metadata) throws IOException {
+            return commit(metadata, Utility.sha256Hex(tempFile));
+        }
+
+        /**
+         * Same as {@link #commit(Metadata)} with the digest computed while the body was
+         * written, see {@link com.downloadimages.utils.FileTee}. If a body with that
+         * digest is stored already, the written file is dropped and the entry shares it.
+         *
+         * @param sha256Hex the lowercase hex SHA-256 digest of the written body
+         */
+        public Entry commit(@NonNull Metadata metadata, @NonNull String sha256Hex) throws IOException {
+            if (done) throw new IllegalStateException("editor already closed");
+            done = true;
+            return completeEdit(this, metadata, sha256Hex);
+        }
+
+        public void abort() {
+            if (done) return;
+            done = true;
+            if (tempFile.exists() && !tempFile.delete()) {
+                Log.w(TAG, "could not delete " + tempFile);
+            }
+        }
+    }
+
+    /**
+     * @return the cached entry for the URL, which has to be closed, or null if there is none
+     */
+    @Nullable
+    public synchronized Entry get(@NonNull String url) {
+        String key = keyOf(url);
+        String digest = entries.get(key);
+        if (digest == null) return null;
+        File bodyFile = blobFile(digest);
+        Metadata metadata;
+        try {
+            metadata = Metadata.readFrom(metadataFile(key));
+        } catch (IOException e) {
+            Log.w(TAG, "dropping unreadable entry " + key, e);
+            removeEntry(key);
+            return null;
+        }
+        if (!bodyFile.exists()) {
+            removeEntry(key);
+            return null;
+        }
+        journal(READ + " " + key);
+        pin(digest);
+        return new Entry(this, bodyFile, metadata, digest);
+    }
+
+    /**
+     * Starts writing a new body for the URL.
+     */
+    public Editor edit(@NonNull String url) {
+        String key = keyOf(url);
+        return new Editor(key, new File(directory, key + ".tmp" + nextTempId.getAndIncrement()));
+    }
+
+    /**
+     * Replaces the metadata of an existing entry, e.g. after a 304 response.
+     */
+    public synchronized void updateMetadata(@NonNull String url, @NonNull Metadata metadata) {
+        String key = keyOf(url);
+        if (!entries.containsKey(key)) return;
+        try {
+            metadata.writeTo(metadataFile(key));
+        } catch (IOException e) {
+            Log.w(TAG, "could not update metadata of " + key, e);
+            removeEntry(key);
+        }
+    }
+
+    public synchronized boolean remove(@NonNull String url) {
+        String key = keyOf(url);
+        if (!entries.containsKey(key)) return false;
+        removeEntry(key);
+        return true;
+    }
+
+    /**
+     * @return the number of bytes currently stored, counting shared bodies once
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of distinct bodies stored
+     */
+    public synchronized int blobCount() {
+        return blobs.size();
+    }
+
+    /**
+     * @return the bytes of bodies that were not stored because the same content
+     * already was, since the cache was opened
+     */
+    public synchronized long deduplicatedBytes() {
+        return deduplicatedBytes;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public synchronized int entryCount() {
+        return entries.size();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private synchronized Entry completeEdit(Editor editor, Metadata metadata, String digest) throws IOException {
+        String key = editor.key;
+        File blobFile = blobFile(digest);
+        long blobSize;
+        try {
+            if (editor.tempFile.length() > maxSize) {
+                // it would be evicted right away
+                throw new IOException(editor.tempFile.length() + " bytes do not fit in the cache");
+            }
+            metadata.writeTo(metadataFile(key));
+            if ((blobs.containsKey(digest) || pins.containsKey(digest)) && blobFile.exists()) {
+                // the same content is stored for another URL already, or still read after its eviction
+                Blob blob = blobs.get(digest);
+                blobSize = blob != null ? blob.size : blobFile.length();
+                deduplicatedBytes += blobSize;
+                editor.tempFile.delete();
+            } else {
+                if (blobFile.exists() && !blobFile.delete()) {
+                    throw new IOException("could not replace " + blobFile);
+                }
+                if (!editor.tempFile.renameTo(blobFile)) {
+                    throw new IOException("could not rename " + editor.tempFile);
+                }
+                blobSize = blobFile.length();
+            }
+        } catch (IOException e) {
+            editor.tempFile.delete();
+            removeEntry(key);
+            throw e;
+        }
+        retain(digest, blobSize);
+        String oldDigest = entries.put(key, digest);
+        if (oldDigest != null) {
+            release(oldDigest, true);
+            redundantOpCount++;
+        }
+        journal(CLEAN + " " + key + " " + digest + " " + blobSize);
+        trimToSize();
+        pin(digest);
+        return new Entry(this, blobFile, metadata, digest);
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, String>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, String> eldest = iterator.next();
+            iterator.remove();
+            metadataFile(eldest.getKey()).delete();
+            release(eldest.getValue(), true);
+            redundantOpCount++;
+            journal(REMOVE + " " + eldest.getKey());
+        }
+    }
+
+    private void removeEntry(String key) {
+        String digest = entries.remove(key);
+        if (digest != null) {
+            release(digest, true);
+        }
+        metadataFile(key).delete();
+        redundantOpCount++;
+        journal(REMOVE + " " + key);
+    }
+
+    /**
+     * Adds a reference to the blob, which starts being counted when it gets its first one.
+     */
+    private void retain(String digest, long blobSize) {
+        Blob blob = blobs.get(digest);
+        if (blob == null) {
+            blob = new Blob(blobSize);
+            blobs.put(digest, blob);
+            size += blobSize;
+        }
+        blob.references++;
+    }
+
+    /**
+     * Drops a reference to the blob, and the blob with its last one. The file of a
+     * pinned blob is deleted when its last entry is closed.
+     *
+     * @param deleteFile false while reading the journal, when the file is gone already
+     */
+    private void release(String digest, boolean deleteFile) {
+        Blob blob = blobs.get(digest);
+        if (blob == null || --blob.references > 0) return;
+        blobs.remove(digest);
+        size -= blob.size;
+        if (deleteFile && !pins.containsKey(digest)) {
+            blobFile(digest).delete();
+        }
+    }
+
+    private void pin(String digest) {
+        Integer count = pins.get(digest);
+        pins.put(digest, count == null ? 1 : count + 1);
+    }
+
+    private void unpin(String digest) {
+        Integer count = pins.get(digest);
+        if (count == null) return;
+        if (count > 1) {
+            pins.put(digest, count - 1);
+            return;
+        }
+        pins.remove(digest);
+        if (!blobs.containsKey(digest)) {
+            blobFile(digest).delete();
+        }
+    }
+
+    private void journal(String line) {
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            journalWriter.flush();
+            if (redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && redundantOpCount >= entries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "could not write journal", e);
+        }
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length == 4 && CLEAN.equals(parts[0])) {
+                    retain(parts[2], Long.parseLong(parts[3]));
+                    String oldDigest = entries.put(parts[1], parts[2]);
+                    if (oldDigest != null) release(oldDigest, false);
+                } else if (parts.length == 2 && READ.equals(parts[0])) {
+                    entries.get(parts[1]);
+                } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+                    String oldDigest = entries.remove(parts[1]);
+                    if (oldDigest != null) release(oldDigest, false);
+                } else {
+                    throw new IOException("unexpected journal line: " + line);
+                }
+            }
+            redundantOpCount = lineCount - entries.size();
+        } catch (NumberFormatException e) {
+            throw new IOException("unexpected journal size", e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void rebuildJournal() throws IOException {
+        if (journalWriter != null) {
+            journalWriter.close();
+        }
+        File tempJournal = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempJournal), UTF_8));
+        try {
+            writer.write(MAGIC + "\n" + VERSION + "\n");
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + " "
+                        + blobs.get(entry.getValue()).size + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        File journal = new File(directory, JOURNAL_FILE);
+        if (!tempJournal.renameTo(journal)) {
+            throw new IOException("could not rename " + tempJournal);
+        }
+        journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journal, true), UTF_8));
+        redundantOpCount = 0;
+    }
+
+    /**
+     * Deletes unfinished edits, and blobs and metadata no entry points to, left behind by a crash.
+     */
+    private void deleteUnusedFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.contains(".tmp")
+                    || (name.endsWith(BLOB_SUFFIX) && !blobs.containsKey(
+                    name.substring(0, name.length() - BLOB_SUFFIX.length())))
+                    || (name.endsWith(META_SUFFIX) && !entries.containsKey(
+                    name.substring(0, name.length() - META_SUFFIX.length())))) {
+                file.delete();
+            }
+        }
+    }
+
+    private void deleteContents() {
+        entries.clear();
+        blobs.clear();
+        size = 0;
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private File blobFile(String digest) {
+        return new File(directory, digest + BLOB_SUFFIX);
+    }
+
+    private File metadataFile(String key) {
+        return new File(directory, key + META_SUFFIX);
+    }
+
+    private static String keyOf(String url) {
+        return Utility.sha256Hex(url);
+    }
+}
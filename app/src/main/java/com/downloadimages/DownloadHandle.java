@@ -0,0 +1,67 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A download started by {@link ImageDownloader#download}. {@link #cancel()} stops
+ * delivering its result to the listener. Once nobody else waits for the same transfer
+ * it is taken off the queue, or, if it is already running, its connection is closed so
+ * a read blocked on the network ends, the decode is skipped and a new request for the
+ * same image starts a fresh transfer instead of attaching to the dying one.
+ * <p>
+ * Must only be used from the main thread.
+ */
+public final class DownloadHandle {
+
+    private final PendingDownload pending;
+    private final ImageDownloader.OnImageLoaderListener listener;
+    private boolean cancelled;
+    private long bytesSaved;
+
+    /**
+     * @param pending the transfer the listener is attached to, or null if the result
+     *                has already been delivered
+     */
+    DownloadHandle(@Nullable PendingDownload pending, @NonNull ImageDownloader.OnImageLoaderListener listener) {
+        this.pending = pending;
+        this.listener = listener;
+    }
+
+    /**
+     * Stops the download for this caller. No callback reaches the listener afterwards.
+     *
+     * @return true if the listener was still waiting, false if the result had been
+     * delivered already or the download was cancelled before
+     */
+    public boolean cancel() {
+        if (cancelled) return false;
+        cancelled = true;
+        if (pending == null) return false;
+        PendingDownload.Detach result = ImageDownloader.abandon(pending, listener);
+        if (result == PendingDownload.Detach.ABORTED) {
+            bytesSaved = Math.max(0, pending.remainingBytes());
+        }
+        return result != PendingDownload.Detach.NOT_ATTACHED;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the bytes of the response body that were not downloaded because this
+     * cancel aborted the transfer. 0 if the transfer had not started, since its length
+     * is not known then, if it goes on for other callers, or if the server did not send
+     * its length. See {@link ImageDownloader#getCancellationStats()} for totals.
+     */
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadHandle{" + (pending != null ? pending.getKey() : "delivered")
+                + (cancelled ? " cancelled, saved " + bytesSaved + "B" : "") + "}";
+    }
+}
@@ -0,0 +1,197 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+
+import com.downloadimages.utils.CallTimings;
+
+/**
+ * Timing breakdown of one image request, passed to {@link ImageDownloader.OnMetricsListener}s.
+ * All durations are in nanoseconds and -1 for phases the request did not go through,
+ * e.g. DNS and connect on a reused connection, or everything but decode for a disk
+ * cache hit.
+ */
+public final class DownloadMetrics {
+
+    /**
+     * Where the image came from.
+     */
+    public enum Source {
+        /**
+         * The memory cache, nothing was downloaded or decoded
+         */
+        MEMORY,
+        /**
+         * A fresh disk cache entry
+         */
+        DISK,
+        /**
+         * A disk cache entry the server confirmed with 304 Not Modified
+         */
+        NOT_MODIFIED,
+        NETWORK
+    }
+
+    private final String url;
+    Source source = Source.NETWORK;
+    boolean success;
+    boolean cancelled;
+    boolean deduplicated;
+    long queueWaitNanos = -1;
+    long dnsNanos = -1;
+    long connectNanos = -1;
+    long tlsNanos = -1;
+    long ttfbNanos = -1;
+    long transferNanos = -1;
+    long decodeNanos = -1;
+    long diskWriteNanos = -1;
+    long totalNanos = -1;
+    long wireBytes = -1;
+    long decodedBytes = -1;
+    int attempts;
+
+    DownloadMetrics(@NonNull String url) {
+        this.url = url;
+    }
+
+    /**
+     * Copies the network phases of the call the image was fetched with.
+     */
+    void setCallTimings(@NonNull CallTimings timings) {
+        dnsNanos = timings.getDnsNanos();
+        connectNanos = timings.getConnectNanos();
+        tlsNanos = timings.getTlsNanos();
+        ttfbNanos = timings.getTtfbNanos();
+        wireBytes = timings.getResponseBodyBytes();
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    @NonNull
+    public Source getSource() {
+        return source;
+    }
+
+    /**
+     * @return true if a bitmap was delivered
+     */
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return true if every caller cancelled the download before it was delivered
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if another URL's bitmap with the same content was delivered instead
+     * of decoding this one
+     */
+    public boolean isDeduplicated() {
+        return deduplicated;
+    }
+
+    /**
+     * @return the time the request waited in the {@link DownloadScheduler} queue
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    /**
+     * @return the time to open the connection, including the TLS handshake
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public long getTlsNanos() {
+        return tlsNanos;
+    }
+
+    /**
+     * @return the time from sending the request to the first byte of the response
+     */
+    public long getTtfbNanos() {
+        return ttfbNanos;
+    }
+
+    /**
+     * @return the time from the response headers to the last byte of the body,
+     * including the disk writes done while streaming
+     */
+    public long getTransferNanos() {
+        return transferNanos;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * @return the time spent writing the body to the disk cache and committing it
+     */
+    public long getDiskWriteNanos() {
+        return diskWriteNanos;
+    }
+
+    /**
+     * @return the time from the start of the request until the result was ready for
+     * delivery, excluding the time waiting in the queue
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the size of the body as transferred, before content decoding
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return the size of the decoded bitmap in memory
+     */
+    public long getDecodedBytes() {
+        return decodedBytes;
+    }
+
+    /**
+     * @return the number of network requests made for the image, more than one if
+     * transient failures were retried, 0 if it did not hit the network
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadMetrics{" + source + (success ? "" : cancelled ? " cancelled" : " failed")
+                + " queue=" + millis(queueWaitNanos)
+                + " dns=" + millis(dnsNanos)
+                + " connect=" + millis(connectNanos)
+                + " tls=" + millis(tlsNanos)
+                + " ttfb=" + millis(ttfbNanos)
+                + " transfer=" + millis(transferNanos)
+                + " decode=" + millis(decodeNanos)
+                + " diskWrite=" + millis(diskWriteNanos)
+                + " total=" + millis(totalNanos)
+                + " attempts=" + attempts
+                + (deduplicated ? " deduplicated" : "")
+                + " wire=" + wireBytes + "B decoded=" + decodedBytes + "B " + url + "}";
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : nanos / 1000000 + "ms";
+    }
+}
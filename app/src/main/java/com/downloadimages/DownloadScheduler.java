@@ -0,0 +1,313 @@
+package com.downloadimages;
+
+import android.net.Uri;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs image downloads on a dedicated pool instead of the shared
+ * {@code AsyncTask.THREAD_POOL_EXECUTOR}. Queued tasks are started in
+ * {@link Priority} order (FIFO within the same priority), while never running
+ * more than {@link #getMaxConcurrent()} tasks overall and
+ * {@link #getMaxPerHost()} tasks against the same host.
+ */
+public final class DownloadScheduler {
+
+    /**
+     * Order in which queued downloads are started. Items that are currently
+     * visible on screen should use {@link #HIGH}, speculative work {@link #LOW}.
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENT = 6;
+    public static final int DEFAULT_MAX_PER_HOST = 4;
+
+    private static final String TAG = "DownloadScheduler";
+
+    private final TreeSet<Task> readyTasks = new TreeSet<>(new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.priority != b.priority) {
+                return a.priority.ordinal() - b.priority.ordinal();
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    });
+    private final List<Task> runningTasks = new ArrayList<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private final ExecutorService executorService;
+    private int maxConcurrent;
+    private int maxPerHost;
+    private boolean lowPriorityPaused;
+    private long nextSequence = 0;
+
+    public DownloadScheduler() {
+        this(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_PER_HOST);
+    }
+
+    public DownloadScheduler(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent < 1 || maxPerHost < 1) {
+            throw new IllegalArgumentException("limits must be >= 1");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        // the pool itself is unbounded, the limits are enforced by promoteTasks()
+        this.executorService = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new DownloadThreadFactory());
+    }
+
+    /**
+     * A unit of work run by the scheduler. Subclasses implement {@link #execute()},
+     * which is invoked on a background thread.
+     */
+    public abstract static class Task implements Runnable {
+        private final String host;
+        private Priority priority;
+        private long sequence;
+        private DownloadScheduler scheduler;
+        // guarded by the scheduler
+        private boolean running;
+        private boolean resubmitted;
+        private long submittedNanos;
+        private volatile long startedNanos = -1;
+
+        protected Task(@NonNull String url, @NonNull Priority priority) {
+            this.host = hostOf(url);
+            this.priority = priority;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return the time between {@link #submit(Task)} and the start of {@link #execute()},
+         * or -1 if the task has not started
+         */
+        public long getQueueWaitNanos() {
+            return startedNanos < 0 ? -1 : startedNanos - submittedNanos;
+        }
+
+        /**
+         * Performs the download. Invoked on a scheduler thread.
+         */
+        protected abstract void execute();
+
+        @Override
+        public final void run() {
+            startedNanos = System.nanoTime();
+            try {
+                execute();
+            } finally {
+                scheduler.finished(this);
+            }
+        }
+    }
+
+    /**
+     * Queues the given task. It will be started as soon as the global and
+     * per-host limits allow it and no task with a higher priority is waiting.
+     * A task that is queued already stays queued once, and one that is still
+     * running, e.g. a retry submitted from its own {@link Task#execute()}, is
+     * queued again when that run has finished, so a task never runs twice at once.
+     */
+    public void submit(@NonNull Task task) {
+        synchronized (this) {
+            if (task.running) {
+                task.resubmitted = true;
+                return;
+            }
+            if (task.scheduler == this && readyTasks.contains(task)) return;
+            enqueue(task);
+        }
+        promoteTasks();
+    }
+
+    /**
+     * Removes a task that has not been started yet, or the resubmission of a running one.
+     *
+     * @return true if the task was still queued and will not run
+     */
+    public synchronized boolean cancel(@NonNull Task task) {
+        if (task.resubmitted) {
+            task.resubmitted = false;
+            return true;
+        }
+        return readyTasks.remove(task);
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent < 1: " + maxConcurrent);
+        }
+        synchronized (this) {
+            this.maxConcurrent = maxConcurrent;
+        }
+        promoteTasks();
+    }
+
+    public synchronized int getMaxPerHost() {
+        return maxPerHost;
+    }
+
+    public void setMaxPerHost(int maxPerHost) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("maxPerHost < 1: " + maxPerHost);
+        }
+        synchronized (this) {
+            this.maxPerHost = maxPerHost;
+        }
+        promoteTasks();
+    }
+
+    public synchronized boolean isLowPriorityPaused() {
+        return lowPriorityPaused;
+    }
+
+    /**
+     * Holds back queued {@link Priority#LOW} tasks, e.g. prefetches while memory is
+     * short. They stay queued and can still be cancelled; running ones are not affected.
+     */
+    public void setLowPriorityPaused(boolean paused) {
+        synchronized (this) {
+            this.lowPriorityPaused = paused;
+        }
+        promoteTasks();
+    }
+
+    /**
+     * @return the number of tasks waiting to be started
+     */
+    public synchronized int queuedCount() {
+        return readyTasks.size();
+    }
+
+    /**
+     * @return the number of tasks with the given priority waiting to be started
+     */
+    public synchronized int queuedCount(@NonNull Priority priority) {
+        int count = 0;
+        for (Task task : readyTasks) {
+            if (task.priority == priority) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of tasks currently running
+     */
+    public synchronized int runningCount() {
+        return runningTasks.size();
+    }
+
+    /**
+     * @return the number of tasks currently running against the given host
+     */
+    public synchronized int runningCount(@NonNull String host) {
+        Integer count = runningPerHost.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private void enqueue(Task task) {
+        task.scheduler = this;
+        task.sequence = nextSequence++;
+        task.submittedNanos = System.nanoTime();
+        readyTasks.add(task);
+    }
+
+    private void finished(Task task) {
+        synchronized (this) {
+            if (!runningTasks.remove(task)) {
+                Log.w(TAG, "finished a task that was not running");
+                return;
+            }
+            task.running = false;
+            int hostCount = runningPerHost.get(task.host) - 1;
+            if (hostCount == 0) {
+                runningPerHost.remove(task.host);
+            } else {
+                runningPerHost.put(task.host, hostCount);
+            }
+            if (task.resubmitted) {
+                task.resubmitted = false;
+                enqueue(task);
+            }
+        }
+        promoteTasks();
+    }
+
+    /**
+     * Starts queued tasks in priority order until a limit is hit. Tasks whose
+     * host is saturated are skipped so they don't hold back other hosts.
+     */
+    private void promoteTasks() {
+        List<Task> toStart = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Task> it = readyTasks.iterator(); it.hasNext()
+                    && runningTasks.size() < maxConcurrent; ) {
+                Task task = it.next();
+                // low priority tasks are ordered last
+                if (lowPriorityPaused && task.priority == Priority.LOW) break;
+                Integer hostCount = runningPerHost.get(task.host);
+                int running = hostCount == null ? 0 : hostCount;
+                if (running >= maxPerHost) continue;
+
+                it.remove();
+                task.running = true;
+                runningTasks.add(task);
+                runningPerHost.put(task.host, running + 1);
+                toStart.add(task);
+            }
+        }
+        for (Task task : toStart) {
+            executorService.execute(task);
+        }
+    }
+
+    private static String hostOf(String url) {
+        String host = Uri.parse(url).getHost();
+        return host == null ? "" : host;
+    }
+
+    private static final class DownloadThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "ImageDownloader #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,38 +1,229 @@
 package com.downloadimages;
 
+import android.app.Activity;
 import android.app.DownloadManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import com.downloadimages.utils.BandwidthEstimator;
+import com.downloadimages.utils.CallTimings;
+import com.downloadimages.utils.FileTee;
+import com.downloadimages.utils.SharedHttpClient;
+import com.downloadimages.utils.Utility;
+
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
 
 public class ImageDownloader {
 
     private OnImageLoaderListener imageLoaderListener;
-    private Set<String> urlsInProgress = new HashSet<>();
-    private final String TAG = "ImageDownloader";
-    private int posImage = 0;
-    private static final int BUFFER_SIZE = 4096;
+    private Activity owner;
+    private static final String TAG = "ImageDownloader";
+    private static final String DISK_CACHE_SUBDIR = "images";
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final DownloadScheduler scheduler = new DownloadScheduler();
+    private static final ConcurrencyController concurrencyController = new ConcurrencyController(scheduler,
+            BandwidthEstimator.getInstance());
+    private static final DecodeStage decodeStage = new DecodeStage();
+    private static final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private static final CancellationStats cancellationStats = new CancellationStats();
+    private static final MemoryBudget memoryBudget = new MemoryBudget();
+    private static final OwnerBindings ownerBindings = new OwnerBindings();
+    private static boolean ownerBindingsRegistered;
+    private static MemoryPressure memoryPressure;
+    private static final Runnable recoverFromMemoryPressure = new Runnable() {
+        @Override
+        public void run() {
+            if (memoryPressure.recover(System.nanoTime())) {
+                mainHandler.postDelayed(this, MemoryPressure.RECOVERY_INTERVAL_MILLIS);
+            } else {
+                Log.d(TAG, "recovered from memory pressure");
+            }
+        }
+    };
+    private static volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private static final ConcurrentMap<String, PendingDownload> inFlight = new ConcurrentHashMap<>();
+    private static final List<OnMetricsListener> metricsListeners = new CopyOnWriteArrayList<>();
+    private static BitmapMemoryCache memoryCache;
+    private static File diskCacheDir;
+    private static DiskCache diskCache;
 
     public ImageDownloader(@NonNull OnImageLoaderListener listener) {
         this.imageLoaderListener = listener;
     }
 
+    /**
+     * Creates a downloader and sizes the shared memory cache to the device's
+     * memory class, if that has not happened yet. The first one also registers
+     * for the system's memory signals, see {@link MemoryPressure}. If the context is an
+     * {@link Activity}, the downloader is bound to it, see {@link #bindTo(Activity)}.
+     */
+    public ImageDownloader(@NonNull Context context, @NonNull OnImageLoaderListener listener) {
+        this(listener);
+        synchronized (ImageDownloader.class) {
+            if (memoryCache == null) {
+                memoryCache = BitmapMemoryCache.create(context.getApplicationContext());
+            }
+            if (diskCacheDir == null) {
+                diskCacheDir = new File(context.getCacheDir(), DISK_CACHE_SUBDIR);
+            }
+            if (memoryPressure == null) {
+                memoryPressure = new MemoryPressure(memoryCache, decodeStage, scheduler, memoryBudget);
+                context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+                    @Override
+                    public void onTrimMemory(int level) {
+                        Log.d(TAG, "trim memory level " + level);
+                        memoryPressure.onTrimMemory(level, System.nanoTime());
+                        scheduleRecovery();
+                    }
+
+                    @Override
+                    public void onLowMemory() {
+                        Log.d(TAG, "low memory");
+                        memoryPressure.onLowMemory(System.nanoTime());
+                        scheduleRecovery();
+                    }
+
+                    @Override
+                    public void onConfigurationChanged(Configuration newConfig) {
+                    }
+                });
+            }
+        }
+        if (context instanceof Activity) {
+            bindTo((Activity) context);
+        }
+    }
+
+    /**
+     * Ties the listener of downloads started afterwards to the lifecycle of the owner,
+     * so running transfers do not keep a destroyed Activity and its views alive. Once
+     * the owner is destroyed the listener is detached and not notified anymore. If it
+     * is recreated for a configuration change the transfers go on and leave their
+     * results in the caches, where the new instance finds them; otherwise they are
+     * cancelled as if by {@link DownloadHandle#cancel()} when nobody else waits for them.
+     * Must be called on the main thread.
+     *
+     * @param owner the Activity the listener belongs to, or null to not bind later downloads
+     * @return this downloader
+     */
+    public ImageDownloader bindTo(@Nullable Activity owner) {
+        this.owner = owner;
+        if (owner != null) {
+            registerOwnerBindings(owner);
+        }
+        return this;
+    }
+
+    private static void registerOwnerBindings(Activity owner) {
+        if (!ownerBindingsRegistered) {
+            owner.getApplication().registerActivityLifecycleCallbacks(ownerBindings);
+            ownerBindingsRegistered = true;
+        }
+    }
+
+    /**
+     * Detaches the listener from the transfer once the owner this downloader is bound
+     * to is destroyed. Does nothing if it is not bound or the result was delivered.
+     */
+    void bind(@Nullable PendingDownload pending, @NonNull OnImageLoaderListener listener) {
+        if (owner != null && pending != null) {
+            ownerBindings.bind(owner, pending, listener);
+        }
+    }
+
+    /**
+     * Restarts the wait before the limits are relaxed. Memory signals arrive on the main thread.
+     */
+    private static void scheduleRecovery() {
+        mainHandler.removeCallbacks(recoverFromMemoryPressure);
+        mainHandler.postDelayed(recoverFromMemoryPressure, MemoryPressure.RECOVERY_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @return the reaction to the system's memory signals, or null until a downloader
+     * was created with a {@link Context}
+     */
+    @Nullable
+    public static synchronized MemoryPressure getMemoryPressure() {
+        return memoryPressure;
+    }
+
+    /**
+     * Returns the disk cache shared by all {@link ImageDownloader} instances, opening it
+     * on first use. This reads the cache journal and must not be called on the main thread.
+     *
+     * @return the disk cache, or null if no {@link Context} was provided yet or it could
+     * not be opened
+     */
+    @Nullable
+    public static synchronized DiskCache getDiskCache() {
+        if (diskCache == null && diskCacheDir != null) {
+            try {
+                diskCache = DiskCache.open(diskCacheDir, DiskCache.DEFAULT_MAX_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "could not open disk cache, continuing without it", e);
+                diskCacheDir = null;
+            }
+        }
+        return diskCache;
+    }
+
+    /**
+     * Gives back a bitmap delivered to {@link OnImageLoaderListener#onComplete(Bitmap, String, int)}
+     * or {@link BatchDownload.Listener#onItemComplete(int, String, Bitmap)} once it is not
+     * displayed anymore. After it left the memory cache and every caller released it, its
+     * memory is reused by later decodes, so it must not be drawn after this call. Bitmaps
+     * that are never released are not reused.
+     */
+    public static void releaseBitmap(@NonNull Bitmap bitmap) {
+        getMemoryCache().release(bitmap);
+    }
+
+    /**
+     * @return the pool decoders reuse bitmap memory from, fed by bitmaps that left
+     * the memory cache and were released by every caller
+     */
+    public static BitmapPool getBitmapPool() {
+        return getMemoryCache().getBitmapPool();
+    }
+
+    /**
+     * @return the bitmap cache shared by all {@link ImageDownloader} instances
+     */
+    public static synchronized BitmapMemoryCache getMemoryCache() {
+        if (memoryCache == null) {
+            memoryCache = BitmapMemoryCache.create();
+        }
+        return memoryCache;
+    }
+
     /**
      * Interface definition for callbacks to be invoked
      * when the image download status changes.
@@ -54,7 +245,10 @@ public class ImageDownloader {
         void onProgressChange(int percent);
 
         /**
-         * Invoked after the image has been successfully downloaded
+         * Invoked after the image has been successfully downloaded. The bitmap may be
+         * shared with other callers and the memory cache; pass it to
+         * {@link ImageDownloader#releaseBitmap(Bitmap)} once it is not displayed anymore,
+         * so its memory can be reused after it left the cache.
          *
          * @param result the downloaded image
          */
@@ -64,253 +258,1247 @@ public class ImageDownloader {
     }
 
     /**
-     * Downloads a file from a URL
+     * Receives the timing breakdown of every image request, see {@link DownloadMetrics}
+     * and {@link MetricsAggregator}.
+     */
+    public interface OnMetricsListener {
+        /**
+         * Invoked on the thread that handled the request, which is the main thread for
+         * memory cache hits. Implementations must be fast and must not block.
+         */
+        void onMetrics(@NonNull DownloadMetrics metrics);
+    }
+
+    public static void addMetricsListener(@NonNull OnMetricsListener listener) {
+        metricsListeners.add(listener);
+    }
+
+    public static void removeMetricsListener(@NonNull OnMetricsListener listener) {
+        metricsListeners.remove(listener);
+    }
+
+    private static void publishMetrics(DownloadMetrics metrics) {
+        for (OnMetricsListener listener : metricsListeners) {
+            listener.onMetrics(metrics);
+        }
+    }
+
+    /**
+     * Detailed progress of a download. An {@link OnImageLoaderListener} that also
+     * implements this interface receives these events in addition to
+     * {@link OnImageLoaderListener#onProgressChange(int)}, even if it did not ask to
+     * display progress and even if the length of the image is unknown.
+     */
+    public interface OnProgressListener {
+        /**
+         * Invoked on the main thread, at most about ten times per second and once per
+         * percent of the image
+         *
+         * @param event bytes read, rates and ETA of the download
+         */
+        void onProgress(ProgressEvent event);
+    }
+
+    /**
+     * Downloads a file from a URL. If an earlier call was interrupted the download
+     * continues from the partial file, see {@link ResumableDownload}. Transient
+     * failures are retried according to the {@link #getRetryPolicy() retry policy},
+     * each retry resuming where the previous attempt stopped, and no request is sent
+     * while the host's {@link #getCircuitBreaker() circuit} is open.
      *
      * @param fileURL HTTP URL of the file to be downloaded
      * @param saveDir path of the directory to save the file
      * @throws IOException
      */
     public static void downloadFile(String fileURL, String saveDir) throws IOException {
-        URL url = new URL(fileURL);
-        HttpURLConnection httpConn = (HttpURLConnection) url.openConnection();
-        int responseCode = httpConn.getResponseCode();
+        RetryPolicy policy = retryPolicy;
+        Response head = requestHead(fileURL, policy);
+        if (head != null) {
+            downloadFile(fileURL, saveDir, head, policy);
+        }
+    }
 
-        // always check HTTP response code first
-        if (responseCode == HttpURLConnection.HTTP_OK) {
-            String fileName = "";
-            String disposition = httpConn.getHeaderField("Content-Disposition");
-            String contentType = httpConn.getContentType();
-            int contentLength = httpConn.getContentLength();
-
-            if (disposition != null) {
-                // extracts file name from header field
-                int index = disposition.indexOf("filename=");
-                if (index > 0) {
-                    fileName = disposition.substring(index + 10,
-                            disposition.length() - 1);
-                }
-            } else {
-                // extracts file name from URL
-                fileName = fileURL.substring(fileURL.lastIndexOf("/") + 1,
-                        fileURL.length());
-            }
+    /**
+     * Sends a HEAD request, retrying transient failures.
+     *
+     * @return the response, or null if the server kept answering with a transient error
+     */
+    @Nullable
+    private static Response requestHead(String fileURL, RetryPolicy policy) throws IOException {
+        try {
+            return ResumableDownload.head(fileURL, policy, circuitBreaker);
+        } catch (ResumableDownload.HttpStatusException e) {
+            Log.d(TAG, "No file to download. Server replied HTTP code: " + e.code);
+            return null;
+        }
+    }
 
-            System.out.println("Content-Type = " + contentType);
-            System.out.println("Content-Disposition = " + disposition);
-            System.out.println("Content-Length = " + contentLength);
-            System.out.println("fileName = " + fileName);
+    private static void downloadFile(String fileURL, String saveDir, Response head, RetryPolicy policy)
+            throws IOException {
+        int responseCode = head.code();
 
-            // opens input stream from the HTTP connection
-            InputStream inputStream = httpConn.getInputStream();
-            String saveFilePath = saveDir + File.separator + fileName;
+        // always check HTTP response code first
+        if (responseCode == HTTP_OK) {
+            String disposition = head.header("Content-Disposition");
+            String contentType = head.header("Content-Type");
+            String contentLength = head.header("Content-Length");
+            String fileName = fileNameOf(fileURL, disposition);
 
-            // opens an output stream to save into file
-            FileOutputStream outputStream = new FileOutputStream(saveFilePath);
+            Log.d(TAG, "Content-Type = " + contentType);
+            Log.d(TAG, "Content-Disposition = " + disposition);
+            Log.d(TAG, "Content-Length = " + contentLength);
+            Log.d(TAG, "fileName = " + fileName);
 
-            int bytesRead = -1;
-            byte[] buffer = new byte[BUFFER_SIZE];
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
+            // one connection per attempt, waiting between them as the policy says
+            ResumableDownload.Result result = new ResumableDownload(fileURL, new File(saveDir, fileName))
+                    .setRetryPolicy(policy)
+                    .setCircuitBreaker(circuitBreaker)
+                    .run();
 
-            outputStream.close();
-            inputStream.close();
+            Log.d(TAG, "File downloaded, resumed at " + result.getResumedFrom()
+                    + " of " + result.getTotalBytes() + " bytes");
+        } else {
+            Log.d(TAG, "No file to download. Server replied HTTP code: " + responseCode);
+        }
+    }
 
-            System.out.println("File downloaded");
+    /**
+     * Downloads a large file from a URL over several parallel connections, each
+     * fetching one byte range, see {@link SegmentedDownload}. Falls back to a
+     * single resumable stream if the server does not support ranges. Transient
+     * failures are retried according to the {@link #getRetryPolicy() retry policy}
+     * and no request is sent while the host's {@link #getCircuitBreaker() circuit}
+     * is open.
+     *
+     * @param fileURL  HTTP URL of the file to be downloaded
+     * @param saveDir  path of the directory to save the file
+     * @param segments the maximum number of parallel connections
+     * @return the size, segment count and aggregate throughput of the download
+     * @throws IOException
+     */
+    public static SegmentedDownload.Result downloadFile(String fileURL, String saveDir, int segments)
+            throws IOException {
+        RetryPolicy policy = retryPolicy;
+        Response head = ResumableDownload.head(fileURL, policy, circuitBreaker);
+        if (head.code() != HTTP_OK) {
+            throw new IOException("No file to download. Server replied HTTP code: " + head.code());
+        }
+        String fileName = fileNameOf(fileURL, head.header("Content-Disposition"));
+        // the probe above also tells the length and range support
+        SegmentedDownload.Result result = new SegmentedDownload(fileURL, new File(saveDir, fileName), segments)
+                .setRetryPolicy(policy)
+                .setCircuitBreaker(circuitBreaker)
+                .run(head);
+        Log.d(TAG, "downloaded " + result.getTotalBytes() + " bytes over " + result.getSegmentCount()
+                + " connections at " + result.getBytesPerSecond() / 1024 + " KB/s");
+        return result;
+    }
+
+    private static String fileNameOf(String fileURL, String disposition) {
+        String fileName = "";
+        if (disposition != null) {
+            // extracts file name from header field
+            int index = disposition.indexOf("filename=");
+            if (index > 0) {
+                fileName = disposition.substring(index + 10,
+                        disposition.length() - 1);
+            }
         } else {
-            System.out.println("No file to download. Server replied HTTP code: " + responseCode);
+            // extracts file name from URL
+            fileName = fileURL.substring(fileURL.lastIndexOf("/") + 1,
+                    fileURL.length());
         }
-        httpConn.disconnect();
+        return fileName;
     }
 
     /**
-     * Downloads the image from the given URL using an {@link AsyncTask}. If a download
-     * for the given URL is already in progress this method returns immediately.
+     * Downloads the image from the given URL on the shared {@link DownloadScheduler}
+     * with {@link DownloadScheduler.Priority#NORMAL} priority. If a download
+     * for the given URL is already in progress the listener is attached to it.
      *
      * @param imageUrl        the URL to get the image from
      * @param displayProgress if <b>true</b>, the {@link OnImageLoaderListener#onProgressChange(int)}
      *                        callback will be triggered to notify the caller of the download progress
+     * @return a handle to cancel the download, e.g. when its view is recycled
      */
-    public void download(@NonNull final String imageUrl, final int pos, final boolean displayProgress) {
-        if (urlsInProgress.contains(imageUrl)) {
-            Log.w(TAG, "a download for this url is already running, " +
-                    "no further download will be started");
-            return;
-        }
-        new AsyncTask<Void, Integer, Bitmap>() {
+    public DownloadHandle download(@NonNull final String imageUrl, final int pos, final boolean displayProgress) {
+        return download(imageUrl, pos, displayProgress, DownloadScheduler.Priority.NORMAL);
+    }
 
-            private ImageError error;
+    /**
+     * Downloads the image from the given URL on the shared {@link DownloadScheduler}.
+     * Queued downloads are started in priority order, so images that are currently
+     * visible should be requested with {@link DownloadScheduler.Priority#HIGH}.
+     * If the image is in the memory cache, {@link OnImageLoaderListener#onComplete(Bitmap, String, int)}
+     * is invoked synchronously before this method returns.
+     * If a download for the given URL is already in progress the listener is attached to it
+     * and notified with its own <i>pos</i> once the shared transfer finishes, and with its
+     * progress if it asked for <i>displayProgress</i> and the length of the image is known.
+     *
+     * @param imageUrl        the URL to get the image from
+     * @param displayProgress if <b>true</b>, the {@link OnImageLoaderListener#onProgressChange(int)}
+     *                        callback will be triggered to notify the caller of the download progress
+     * @param priority        the order in which this download is started relative to queued ones
+     * @return a handle to cancel the download, e.g. when its view is recycled
+     */
+    public DownloadHandle download(@NonNull final String imageUrl, final int pos, final boolean displayProgress,
+                                   @NonNull DownloadScheduler.Priority priority) {
+        return download(imageUrl, pos, displayProgress, priority, DecodeOptions.ORIGINAL);
+    }
 
-            @Override
-            protected void onPreExecute() {
-                posImage = pos;
-                urlsInProgress.add(imageUrl);
-                Log.d(TAG, "starting download");
+    /**
+     * Same as {@link #download(String, int, boolean, DownloadScheduler.Priority)}, but decodes
+     * the image no larger than needed for the given target size. Bitmaps decoded with
+     * different options are cached and shared separately. Once a bitmap is evicted from the
+     * memory cache its pixels are reused for other images, so it should only be referenced
+     * while it is being displayed.
+     *
+     * @param imageUrl        the URL to get the image from
+     * @param displayProgress if <b>true</b>, the {@link OnImageLoaderListener#onProgressChange(int)}
+     *                        callback will be triggered to notify the caller of the download progress
+     * @param priority        the order in which this download is started relative to queued ones
+     * @param decodeOptions   the size and bit depth to decode the image at
+     * @return a handle to cancel the download, e.g. when its view is recycled
+     */
+    public DownloadHandle download(@NonNull final String imageUrl, final int pos, final boolean displayProgress,
+                                   @NonNull DownloadScheduler.Priority priority,
+                                   @NonNull final DecodeOptions decodeOptions) {
+        PendingDownload pending = download(imageUrl, pos, displayProgress, priority, decodeOptions,
+                imageLoaderListener);
+        bind(pending, imageLoaderListener);
+        return new DownloadHandle(pending, imageLoaderListener);
+    }
+
+    /**
+     * Downloads all given images on the shared {@link DownloadScheduler} and reports them
+     * to a single listener, see {@link BatchDownload}. Must be called on the main thread.
+     *
+     * @param imageUrls the URLs to get the images from, an item's index in this list is
+     *                  the index it is reported with
+     * @param listener  notified on the main thread about items, progress and the end of the batch
+     * @return a handle to follow or cancel the batch
+     */
+    public BatchDownload downloadAll(@NonNull List<String> imageUrls, @NonNull BatchDownload.Listener listener) {
+        return downloadAll(imageUrls, BatchDownload.Mode.AS_COMPLETED, DownloadScheduler.Priority.NORMAL,
+                DecodeOptions.ORIGINAL, listener);
+    }
+
+    /**
+     * Same as {@link #downloadAll(List, BatchDownload.Listener)} with control over the order
+     * items are delivered in, their priority and their decode size.
+     *
+     * @param mode          whether items are delivered as they complete or in list order
+     * @param priority      the priority of every item of the batch
+     * @param decodeOptions the size and bit depth to decode the images at
+     */
+    public BatchDownload downloadAll(@NonNull List<String> imageUrls, @NonNull BatchDownload.Mode mode,
+                                     @NonNull DownloadScheduler.Priority priority,
+                                     @NonNull DecodeOptions decodeOptions,
+                                     @NonNull BatchDownload.Listener listener) {
+        BatchDownload batch = new BatchDownload(this, imageUrls, mode, priority, decodeOptions, listener);
+        batch.start();
+        return batch;
+    }
+
+    /**
+     * Downloads an image for the given listener.
+     *
+     * @return the transfer the listener was attached to, or null if the image was
+     * in the memory cache and has already been delivered
+     */
+    @Nullable
+    static PendingDownload download(@NonNull final String imageUrl, final int pos, final boolean displayProgress,
+                                    @NonNull DownloadScheduler.Priority priority,
+                                    @NonNull final DecodeOptions decodeOptions,
+                                    @NonNull OnImageLoaderListener listener) {
+        final String key = bitmapKey(imageUrl, decodeOptions);
+        // the listener's reference
+        Bitmap cached = getMemoryCache().getAndAcquire(memoryKey(imageUrl, decodeOptions));
+        if (cached != null) {
+            if (!metricsListeners.isEmpty()) {
+                DownloadMetrics metrics = new DownloadMetrics(imageUrl);
+                metrics.source = DownloadMetrics.Source.MEMORY;
+                metrics.success = true;
+                metrics.decodedBytes = cached.getByteCount();
+                publishMetrics(metrics);
             }
+            listener.onComplete(cached, Uri.parse(imageUrl).getLastPathSegment(), pos);
+            return null;
+        }
+        PendingDownload candidate = new PendingDownload(key);
+        final PendingDownload pending = register(candidate, listener, pos, displayProgress);
+        if (pending != candidate) return pending;
+        Log.d(TAG, "starting download");
+        DownloadScheduler.Task task = new DownloadScheduler.Task(imageUrl, priority) {
 
-            @Override
-            protected void onCancelled() {
-                urlsInProgress.remove(imageUrl);
-                imageLoaderListener.onError(error);
+            private ImageError error;
+            private ProgressThrottle progressThrottle;
+            private final DownloadMetrics metrics = new DownloadMetrics(imageUrl);
+            private long executeStart;
+            private boolean retriedFromNetwork;
+            private int attempts;
+            private String digest;
+            // the cached bitmap of the same content, referenced until it is delivered
+            private Bitmap sharedBitmap;
+
+            private Bitmap decodeFile(File file) {
+                if (pending.isAborted()) return null;
+                Bitmap shared = sharedBitmap();
+                if (shared != null) return shared;
+                long start = System.nanoTime();
+                Bitmap bitmap = BitmapDecoder.decodeFile(file.getAbsolutePath(), decodeOptions, getBitmapPool(),
+                        memoryBudget, pending);
+                metrics.decodeNanos = System.nanoTime() - start;
+                return bitmap;
             }
 
-            @Override
-            protected void onProgressUpdate(Integer... values) {
-                imageLoaderListener.onProgressChange(values[0]);
+            /**
+             * Posts the progress to the main thread, unless it is coalesced into a later update.
+             */
+            private void publishProgress(long bytesRead, long totalBytes) {
+                pending.onBytesRead(bytesRead, totalBytes);
+                final ProgressEvent event = progressThrottle.update(bytesRead, totalBytes, System.nanoTime());
+                if (event == null || !pending.wantsProgress()) return;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pending.progress(event);
+                    }
+                });
             }
 
             @Override
-            protected Bitmap doInBackground(Void... params) {
-                Bitmap bitmap = null;
-                HttpURLConnection connection = null;
+            protected void execute() {
+                if (executeStart == 0) {
+                    // a retry from the network after an unreadable disk entry keeps counting
+                    executeStart = System.nanoTime();
+                    metrics.queueWaitNanos = getQueueWaitNanos();
+                }
+                CallTimings callTimings = null;
+                Callable<Bitmap> decode = null;
+                boolean fromFreshEntry = false;
+                // the decode closes the entry once it read it
+                boolean decodesEntry = false;
+                long retryDelay = -1;
+                Response response = null;
                 InputStream is = null;
-                ByteArrayOutputStream out = null;
+                DiskCache diskCache = getDiskCache();
+                DiskCache.Entry cached = diskCache != null ? diskCache.get(imageUrl) : null;
                 try {
-                    connection = (HttpURLConnection) new URL(imageUrl).openConnection();
-                    if (displayProgress) {
-                        connection.connect();
-                        final int length = connection.getContentLength();
-                        if (length <= 0) {
-                            error = new ImageError("Invalid content length. The URL is probably not pointing to a file")
-                                    .setErrorCode(ImageError.ERROR_INVALID_FILE);
-                            this.cancel(true);
+                    if (cached != null && cached.getMetadata().isFresh()) {
+                        metrics.source = DownloadMetrics.Source.DISK;
+                        digest = cached.getDigest();
+                        decode = decodeFileJob(cached);
+                        decodesEntry = true;
+                        fromFreshEntry = true;
+                        return;
+                    }
+                    if (!circuitBreaker.allowRequest(getHost(), System.nanoTime())) {
+                        if (cached != null) {
+                            Log.d(TAG, getHost() + " is unavailable, using a stale disk cache entry");
+                            metrics.source = DownloadMetrics.Source.DISK;
+                            digest = cached.getDigest();
+                            decode = decodeFileJob(cached);
+                            decodesEntry = true;
+                            return;
                         }
-                        is = new BufferedInputStream(connection.getInputStream(), 8192);
-                        out = new ByteArrayOutputStream();
-                        byte bytes[] = new byte[8192];
-                        int count;
-                        long read = 0;
-                        while ((count = is.read(bytes)) != -1) {
-                            read += count;
-                            out.write(bytes, 0, count);
-                            publishProgress((int) ((read * 100) / length));
+                        error = new ImageError(getHost() + " is unavailable")
+                                .setErrorCode(ImageError.ERROR_HOST_UNAVAILABLE);
+                        return;
+                    }
+                    if (pending.isAborted()) return;
+                    attempts++;
+                    callTimings = new CallTimings();
+                    Request.Builder request = new Request.Builder().url(imageUrl)
+                            .tag(CallTimings.class, callTimings);
+                    if (cached != null) {
+                        cached.getMetadata().addConditionalHeaders(request);
+                    }
+                    long requestStart = System.nanoTime();
+                    final Call call = SharedHttpClient.get().newCall(request.build());
+                    pending.setAbort(new PendingDownload.Abort() {
+                        @Override
+                        public void abort() {
+                            // closes the socket, a blocked read throws right away
+                            call.cancel();
                         }
-                        bitmap = BitmapFactory.decodeByteArray(out.toByteArray(), 0, out.size());
+                    });
+                    response = call.execute();
+                    long firstByte = System.nanoTime();
+                    progressThrottle = new ProgressThrottle(firstByte);
+                    if (!response.isSuccessful() && RetryPolicy.isTransient(response.code())) {
+                        retryDelay = onTransientFailure(response.header("Retry-After"));
+                        if (retryDelay >= 0) return;
+                    } else {
+                        circuitBreaker.onSuccess(getHost());
+                    }
+                    if (cached != null && response.code() == HTTP_NOT_MODIFIED) {
+                        Log.d(TAG, "not modified, using disk cache");
+                        metrics.source = DownloadMetrics.Source.NOT_MODIFIED;
+                        diskCache.updateMetadata(imageUrl, cached.getMetadata()
+                                .revalidated(DiskCache.Metadata.fromResponse(imageUrl, response)));
+                        digest = cached.getDigest();
+                        decode = decodeFileJob(cached);
+                        decodesEntry = true;
+                        return;
+                    }
+                    if (!response.isSuccessful()) {
+                        error = new ImageError("Server replied HTTP code: " + response.code())
+                                .setErrorCode(ImageError.ERROR_INVALID_FILE);
+                        return;
+                    }
+                    // -1 for a chunked body or one without Content-Length, progress is indeterminate then
+                    final int length = (int) response.body().contentLength();
+                    pending.onBytesRead(0, length);
+                    if (diskCache != null) {
+                        is = response.body().byteStream();
+                        decode = streamToDiskCache(diskCache, response, is, length, requestStart, firstByte);
+                        return;
+                    }
+                    is = response.body().byteStream();
+                    if (memoryBudget.canBuffer(length)) {
+                        decode = bufferBody(is, length, requestStart, firstByte);
                     } else {
-                        is = connection.getInputStream();
-                        bitmap = BitmapFactory.decodeStream(is);
+                        decode = spillBody(is, length, requestStart, firstByte);
                     }
                 } catch (Throwable e) {
-                    if (!this.isCancelled()) {
+                    decode = null;
+                    if (pending.isAborted()) {
+                        // we closed the connection ourselves, that says nothing about the host
+                        Log.d(TAG, "download cancelled, " + pending.remainingBytes() + " bytes not read");
+                        return;
+                    }
+                    if (e instanceof SocketTimeoutException) {
+                        concurrencyController.onTimeout();
+                    }
+                    if (RetryPolicy.isTransient(e) && callTimings != null) {
+                        retryDelay = onTransientFailure(null);
+                    }
+                    if (retryDelay < 0) {
                         error = new ImageError(e).setErrorCode(ImageError.ERROR_GENERAL_EXCEPTION);
-                        this.cancel(true);
                     }
                 } finally {
+                    pending.setAbort(null);
                     try {
-                        if (connection != null)
-                            connection.disconnect();
-                        if (out != null) {
-                            out.flush();
-                            out.close();
-                        }
+                        // returns a fully read connection to the shared pool
+                        if (response != null)
+                            response.close();
                         if (is != null)
                             is.close();
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
+                    if (cached != null && (!decodesEntry || decode == null)) {
+                        cached.close();
+                    }
+                    if (callTimings != null) {
+                        metrics.setCallTimings(callTimings);
+                    }
+                    metrics.attempts = attempts;
+                    if (retryDelay >= 0) {
+                        retryLater(retryDelay);
+                    } else if (decode != null && error == null) {
+                        Runnable job = decodeJob(decode, fromFreshEntry);
+                        if (pending.isAborted()) {
+                            // skips the decode at once and releases what the job holds
+                            job.run();
+                        } else {
+                            // the decode runs on its own pool, only waits here while that is saturated
+                            decodeStage.execute(job);
+                        }
+                    } else {
+                        finish(null);
+                    }
                 }
-                return bitmap;
             }
 
-            @Override
-            protected void onPostExecute(Bitmap result) {
+            /**
+             * Wraps a decode for the {@link DecodeStage}. An unreadable fresh disk cache
+             * entry is dropped and the image is downloaded again, once.
+             */
+            private Runnable decodeJob(final Callable<Bitmap> decode, final boolean fromFreshEntry) {
+                return new Runnable() {
+                    @Override
+                    public void run() {
+                        Bitmap bitmap = null;
+                        try {
+                            bitmap = decode.call();
+                        } catch (Throwable e) {
+                            error = new ImageError(e).setErrorCode(ImageError.ERROR_GENERAL_EXCEPTION);
+                        }
+                        if (bitmap == null && error == null && fromFreshEntry && !retriedFromNetwork
+                                && !pending.isAborted()) {
+                            retriedFromNetwork = true;
+                            getDiskCache().remove(imageUrl);
+                            metrics.source = DownloadMetrics.Source.NETWORK;
+                            downloadAgain();
+                            return;
+                        }
+                        finish(bitmap);
+                    }
+                };
+            }
+
+            private Callable<Bitmap> decodeFileJob(final DiskCache.Entry entry) {
+                return new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() {
+                        try {
+                            return decodeFile(entry.getFile());
+                        } finally {
+                            entry.close();
+                        }
+                    }
+                };
+            }
+
+            private void downloadAgain() {
+                // waits for the current run to finish if it has not yet, see DownloadScheduler#submit
+                scheduler.submit(this);
+            }
+
+            /**
+             * @return the cached bitmap of another URL with the same content and decode
+             * options, or null if there is none or the digest is not known yet
+             */
+            private Bitmap sharedBitmap() {
+                if (digest == null) return null;
+                Bitmap shared = getMemoryCache().getAndAcquire(contentKey(digest, decodeOptions));
+                if (shared != null) {
+                    Log.d(TAG, "same content as a cached image, not decoding");
+                    metrics.deduplicated = true;
+                    sharedBitmap = shared;
+                }
+                return shared;
+            }
+
+            /**
+             * Records a transient failure of the request with the circuit breaker.
+             *
+             * @param retryAfter the Retry-After header of the response, if any
+             * @return the delay before the next attempt, or -1 if the request must not be repeated
+             */
+            private long onTransientFailure(String retryAfter) {
+                long now = System.nanoTime();
+                circuitBreaker.onFailure(getHost(), now);
+                RetryPolicy policy = retryPolicy;
+                long requested = RetryPolicy.retryAfterMillis(retryAfter, System.currentTimeMillis());
+                if (requested > policy.getMaxRetryAfterMillis()) {
+                    // the host asked for a longer pause than we wait, leave it alone meanwhile
+                    circuitBreaker.openUntil(getHost(), now + TimeUnit.MILLISECONDS.toNanos(requested));
+                }
+                return policy.retryDelayMillis(attempts, retryAfter, System.currentTimeMillis());
+            }
+
+            /**
+             * Submits the task again after the delay. Nothing holds a download slot meanwhile.
+             */
+            private void retryLater(long delayMillis) {
+                Log.d(TAG, "attempt " + attempts + " failed, retrying in " + delayMillis + " ms");
+                mainHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pending.subscriberCount() == 0) {
+                            error = new ImageError("abandoned before retrying")
+                                    .setErrorCode(ImageError.ERROR_GENERAL_EXCEPTION);
+                            finish(null);
+                            return;
+                        }
+                        downloadAgain();
+                    }
+                }, delayMillis);
+            }
+
+            /**
+             * Caches the result, publishes the metrics and delivers the result on the main thread.
+             */
+            private void finish(Bitmap bitmap) {
+                if (bitmap != null) {
+                    if (bitmap != sharedBitmap) {
+                        // held until delivered, the put below may already evict it
+                        getMemoryCache().acquire(bitmap);
+                    }
+                    if (digest != null) {
+                        getMemoryCache().putDigest(imageUrl, digest);
+                        getMemoryCache().put(contentKey(digest, decodeOptions), bitmap);
+                    } else {
+                        getMemoryCache().put(key, bitmap);
+                    }
+                    // stays within the lower limit while memory is short
+                    getMemoryCache().trimToSizeLimit();
+                }
+                metrics.success = bitmap != null && error == null;
+                metrics.cancelled = pending.isAborted();
+                metrics.decodedBytes = bitmap != null ? bitmap.getByteCount() : -1;
+                metrics.totalNanos = System.nanoTime() - executeStart;
+                publishMetrics(metrics);
+                final Bitmap result = bitmap;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPostExecute(result);
+                    }
+                });
+            }
+
+            /**
+             * Streams the body into a new disk cache entry, so the original bytes are
+             * stored as they were served and never buffered in memory.
+             *
+             * @return the job decoding the entry, which commits it if it can be decoded
+             */
+            private Callable<Bitmap> streamToDiskCache(DiskCache diskCache, Response response,
+                                                       InputStream is, final int length, long requestStart,
+                                                       long firstByte) throws IOException {
+                final DiskCache.Metadata metadata = DiskCache.Metadata.fromResponse(imageUrl, response);
+                final DiskCache.Editor editor = diskCache.edit(imageUrl);
+                boolean handedOff = false;
+                try {
+                    FileTee.Result written = FileTee.copy(is, editor.getFile(), length,
+                            new FileTee.ProgressListener() {
+                                @Override
+                                public void onProgress(long bytesWritten) {
+                                    publishProgress(bytesWritten, length);
+                                }
+                            });
+                    recordTransfer(written.getByteCount(), requestStart, firstByte);
+                    digest = written.getSha256Hex();
+                    Log.d(TAG, written.getByteCount() + " bytes streamed to disk, sha256 " + digest);
+                    metrics.diskWriteNanos = written.getWriteNanos();
+                    handedOff = true;
+                    return new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() {
+                            try {
+                                Bitmap bitmap = decodeFile(editor.getFile());
+                                if (bitmap != null && metadata != null) {
+                                    long commitStart = System.nanoTime();
+                                    try {
+                                        editor.commit(metadata, digest).close();
+                                    } catch (IOException e) {
+                                        Log.w(TAG, "could not commit disk cache entry", e);
+                                    }
+                                    metrics.diskWriteNanos += System.nanoTime() - commitStart;
+                                }
+                                return bitmap;
+                            } finally {
+                                editor.abort();
+                            }
+                        }
+                    };
+                } finally {
+                    if (!handedOff) {
+                        editor.abort();
+                    }
+                }
+            }
+
+            /**
+             * Reads the body into memory reserved from the {@link MemoryBudget}, waiting
+             * until the budget has room for it.
+             *
+             * @return the job decoding the body, which releases the reservation
+             */
+            private Callable<Bitmap> bufferBody(InputStream is, int length, long requestStart,
+                                                long firstByte) throws IOException {
+                final MemoryBudget.Reservation reservation = memoryBudget.reserveBody(length, pending);
+                if (reservation == null) {
+                    throw new InterruptedIOException("cancelled while waiting for memory");
+                }
+                boolean handedOff = false;
+                try {
+                    final byte[] data = new byte[length];
+                    int read = 0;
+                    while (read < length) {
+                        int count = is.read(data, read, length - read);
+                        if (count == -1) {
+                            throw new IOException("expected " + length + " bytes but got " + read);
+                        }
+                        read += count;
+                        publishProgress(read, length);
+                    }
+                    recordTransfer(read, requestStart, firstByte);
+                    digest = Utility.sha256Hex(data, 0, length);
+                    handedOff = true;
+                    return new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() {
+                            try {
+                                if (pending.isAborted()) return null;
+                                Bitmap shared = sharedBitmap();
+                                if (shared != null) return shared;
+                                long decodeStart = System.nanoTime();
+                                Bitmap bitmap = BitmapDecoder.decodeByteArray(data, 0, data.length, decodeOptions,
+                                        getBitmapPool(), memoryBudget, pending);
+                                metrics.decodeNanos = System.nanoTime() - decodeStart;
+                                return bitmap;
+                            } finally {
+                                reservation.release();
+                            }
+                        }
+                    };
+                } finally {
+                    if (!handedOff) {
+                        reservation.release();
+                    }
+                }
+            }
+
+            /**
+             * Writes a body too large for the {@link MemoryBudget}, or of unknown length,
+             * to a temporary file instead of the heap.
+             *
+             * @return the job decoding the file, which deletes it
+             */
+            private Callable<Bitmap> spillBody(InputStream is, final int length, long requestStart,
+                                               long firstByte) throws IOException {
+                memoryBudget.onSpilled();
+                // the temporary directory of an app is its cache directory
+                final File file = File.createTempFile("body", ".tmp");
+                boolean handedOff = false;
+                try {
+                    FileTee.Result written = FileTee.copy(is, file, length, new FileTee.ProgressListener() {
+                        @Override
+                        public void onProgress(long bytesWritten) {
+                            publishProgress(bytesWritten, length);
+                        }
+                    });
+                    recordTransfer(written.getByteCount(), requestStart, firstByte);
+                    digest = written.getSha256Hex();
+                    handedOff = true;
+                    return new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() {
+                            try {
+                                return decodeFile(file);
+                            } finally {
+                                file.delete();
+                            }
+                        }
+                    };
+                } finally {
+                    if (!handedOff) {
+                        file.delete();
+                    }
+                }
+            }
+
+            private void recordTransfer(long bytes, long requestStart, long firstByte) {
+                long end = System.nanoTime();
+                metrics.transferNanos = end - firstByte;
+                reportTransfer(requestStart, firstByte, end, bytes);
+            }
+
+            private void onPostExecute(Bitmap result) {
+                try {
+                    deliver(result);
+                } finally {
+                    if (result != null) {
+                        // every subscriber holds its own reference now
+                        getMemoryCache().release(result);
+                    }
+                }
+            }
+
+            private void deliver(Bitmap result) {
+                inFlight.remove(pending.getKey(), pending);
+                if (pending.isAborted()) {
+                    Log.d(TAG, "download cancelled, nothing to deliver");
+                    return;
+                }
+                if (error != null) {
+                    pending.fail(error);
+                    return;
+                }
                 Uri imageUri = Uri.parse(imageUrl);
                 String fileName = imageUri.getLastPathSegment();
                 if (result == null) {
                     Log.e(TAG, "factory returned a null result");
-                    imageLoaderListener.onError(new ImageError("downloaded file could not be decoded as bitmap")
+                    pending.fail(new ImageError("downloaded file could not be decoded as bitmap")
                             .setErrorCode(ImageError.ERROR_DECODE_FAILED));
 //                    imageLoaderListener.onComplete(result, fileName, pos);
                 } else {
                     Log.d(TAG, "download complete, " + result.getByteCount() +
                             " bytes transferred");
-                    imageLoaderListener.onComplete(result, fileName, pos);
+                    pending.complete(result, fileName, getMemoryCache());
 //                    saveImageToStorage(result, fileName);
                 }
-                urlsInProgress.remove(imageUrl);
-                System.gc();
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        };
+        pending.setTask(task);
+        scheduler.submit(task);
+        return pending;
     }
 
-    public void download(@NonNull final String imageUrl, final String savePath) {
-        if (urlsInProgress.contains(imageUrl)) {
-            Log.w(TAG, "a download for this url is already running, " +
-                    "no further download will be started");
-            return;
+    /**
+     * Downloads the image into the disk cache without decoding it, unless a fresh entry
+     * is already there. Failures are not retried, this is speculative work.
+     * {@link OnImageLoaderListener#onComplete(String, String)} receives the cached file,
+     * which the cache may evict again at any time. An image larger than the whole cache
+     * fails.
+     *
+     * If this downloader is bound to an owner, the listener is dropped once the owner
+     * is destroyed, and the task as well if it has not started.
+     *
+     * @return the queued task, which can be dropped with {@link DownloadScheduler#cancel(DownloadScheduler.Task)}
+     */
+    DownloadScheduler.Task prefetchToDiskCache(@NonNull String imageUrl, @NonNull DownloadScheduler.Priority priority,
+                                               @NonNull OnImageLoaderListener listener) {
+        OwnerBindings.Slot<OnImageLoaderListener> slot = new OwnerBindings.Slot<>(listener);
+        DownloadScheduler.Task task = prefetchToDiskCache(imageUrl, priority, slot);
+        if (owner != null) {
+            slot.setTask(task);
+            ownerBindings.bind(owner, slot);
         }
-        new AsyncTask<Void, Integer, String>() {
-
-            private ImageError error;
+        return task;
+    }
 
+    private static DownloadScheduler.Task prefetchToDiskCache(
+            @NonNull final String imageUrl, @NonNull DownloadScheduler.Priority priority,
+            @NonNull final OwnerBindings.Slot<OnImageLoaderListener> slot) {
+        DownloadScheduler.Task task = new DownloadScheduler.Task(imageUrl, priority) {
             @Override
-            protected void onPreExecute() {
-                urlsInProgress.add(imageUrl);
-                Log.d(TAG, "starting download");
+            protected void execute() {
+                ImageError error = null;
+                File file = null;
+                Response response = null;
+                DiskCache.Entry cached = null;
+                try {
+                    DiskCache diskCache = getDiskCache();
+                    if (diskCache == null) {
+                        error = new ImageError("there is no disk cache to prefetch into");
+                        return;
+                    }
+                    cached = diskCache.get(imageUrl);
+                    if (cached != null && cached.getMetadata().isFresh()) {
+                        file = cached.getFile();
+                        return;
+                    }
+                    if (!circuitBreaker.allowRequest(getHost(), System.nanoTime())) {
+                        error = new ImageError(getHost() + " is unavailable")
+                                .setErrorCode(ImageError.ERROR_HOST_UNAVAILABLE);
+                        return;
+                    }
+                    Request.Builder request = new Request.Builder().url(imageUrl);
+                    if (cached != null) {
+                        cached.getMetadata().addConditionalHeaders(request);
+                    }
+                    long requestStart = System.nanoTime();
+                    response = SharedHttpClient.get().newCall(request.build()).execute();
+                    long firstByte = System.nanoTime();
+                    if (!response.isSuccessful() && RetryPolicy.isTransient(response.code())) {
+                        circuitBreaker.onFailure(getHost(), System.nanoTime());
+                    } else {
+                        circuitBreaker.onSuccess(getHost());
+                    }
+                    if (cached != null && response.code() == HTTP_NOT_MODIFIED) {
+                        diskCache.updateMetadata(imageUrl, cached.getMetadata()
+                                .revalidated(DiskCache.Metadata.fromResponse(imageUrl, response)));
+                        file = cached.getFile();
+                        return;
+                    }
+                    DiskCache.Metadata metadata = DiskCache.Metadata.fromResponse(imageUrl, response);
+                    if (!response.isSuccessful() || metadata == null) {
+                        error = new ImageError(response.isSuccessful() ? "the image must not be cached"
+                                : "Server replied HTTP code: " + response.code())
+                                .setErrorCode(ImageError.ERROR_INVALID_FILE);
+                        return;
+                    }
+                    DiskCache.Editor editor = diskCache.edit(imageUrl);
+                    try {
+                        FileTee.Result written = FileTee.copy(response.body().byteStream(), editor.getFile(),
+                                response.body().contentLength(), null);
+                        reportTransfer(requestStart, firstByte, System.nanoTime(), written.getByteCount());
+                        DiskCache.Entry entry = editor.commit(metadata, written.getSha256Hex());
+                        entry.close();
+                        getMemoryCache().putDigest(imageUrl, entry.getDigest());
+                        file = entry.getFile();
+                    } finally {
+                        editor.abort();
+                    }
+                } catch (Throwable e) {
+                    if (RetryPolicy.isTransient(e)) {
+                        circuitBreaker.onFailure(getHost(), System.nanoTime());
+                    }
+                    error = new ImageError(e).setErrorCode(ImageError.ERROR_GENERAL_EXCEPTION);
+                } finally {
+                    if (response != null) {
+                        response.close();
+                    }
+                    if (cached != null) {
+                        cached.close();
+                    }
+                    final ImageError result = error;
+                    final File cachedFile = file;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            OnImageLoaderListener listener = slot.take();
+                            if (listener == null) return;
+                            if (result != null) {
+                                listener.onError(result);
+                            } else {
+                                listener.onComplete(cachedFile.getAbsolutePath(), Uri.parse(imageUrl).getLastPathSegment());
+                            }
+                        }
+                    });
+                }
             }
+        };
+        scheduler.submit(task);
+        return task;
+    }
 
-            @Override
-            protected void onCancelled() {
-                urlsInProgress.remove(imageUrl);
-                imageLoaderListener.onError(error);
-            }
+    /**
+     * Downloads the given URL into <i>savePath</i>. A download of the same URL into
+     * the same path that is already in progress is shared with this caller.
+     * Interrupted transfers are resumed with a range request, see {@link ResumableDownload},
+     * after the backoff of the {@link #getRetryPolicy() retry policy} and only while the
+     * host's {@link #getCircuitBreaker() circuit} is closed.
+     *
+     * @param imageUrl the URL to get the file from
+     * @param savePath the file to write to
+     * @return a handle to cancel the download. A cancelled transfer keeps its partial
+     * file, so downloading the same URL into the same path later resumes it.
+     */
+    public DownloadHandle download(@NonNull final String imageUrl, final String savePath) {
+        PendingDownload candidate = new PendingDownload(fileKey(imageUrl, savePath));
+        PendingDownload pending = register(candidate, imageLoaderListener, 0, false);
+        bind(pending, imageLoaderListener);
+        if (pending == candidate) {
+            startFileDownload(pending, imageUrl, savePath);
+        }
+        return new DownloadHandle(pending, imageLoaderListener);
+    }
+
+    /**
+     * Starts the transfer of a file download. Static, so the running task does not keep
+     * the downloader and its listener alive once the listener was detached.
+     */
+    private static void startFileDownload(@NonNull final PendingDownload pending, @NonNull final String imageUrl,
+                                          final String savePath) {
+        Log.d(TAG, "starting download");
+        DownloadScheduler.Task task = new DownloadScheduler.Task(imageUrl, DownloadScheduler.Priority.NORMAL) {
+
+            private ImageError error;
 
             @Override
-            protected String doInBackground(Void... params) {
-                HttpURLConnection connection = null;
-                InputStream is = null;
-                FileOutputStream outputStream = null;
+            protected void execute() {
+                final ResumableDownload download = new ResumableDownload(imageUrl, new File(savePath))
+                        .setRetryPolicy(retryPolicy)
+                        .setCircuitBreaker(circuitBreaker);
+                pending.setAbort(new PendingDownload.Abort() {
+                    @Override
+                    public void abort() {
+                        download.cancel();
+                    }
+                });
                 try {
-                    connection = (HttpURLConnection) new URL(imageUrl).openConnection();
-                    is = connection.getInputStream();
-                    // opens an output stream to save into file
-                    outputStream = new FileOutputStream(savePath);
-                    int bytesRead = -1;
-                    byte[] buffer = new byte[BUFFER_SIZE];
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        outputStream.write(buffer, 0, bytesRead);
+                    ResumableDownload.Result result = download.run();
+                    if (result.getResumedFrom() > 0) {
+                        Log.d(TAG, "resumed download at " + result.getResumedFrom() + " of "
+                                + result.getTotalBytes() + " bytes");
                     }
                 } catch (Throwable e) {
-                    if (!this.isCancelled()) {
+                    if (!pending.isAborted()) {
                         error = new ImageError(e).setErrorCode(ImageError.ERROR_GENERAL_EXCEPTION);
-                        this.cancel(true);
                     }
                 } finally {
-                    try {
-                        if (connection != null)
-                            connection.disconnect();
-                        if (outputStream != null)
-                            outputStream.close();
-                        if (is != null)
-                            is.close();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    pending.setAbort(null);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onPostExecute(savePath);
+                        }
+                    });
                 }
-                return savePath;
             }
 
-            @Override
-            protected void onPostExecute(String result) {
+            private void onPostExecute(String result) {
+                inFlight.remove(pending.getKey(), pending);
+                if (pending.isAborted()) {
+                    Log.d(TAG, "download cancelled, partial file kept");
+                    return;
+                }
+                if (error != null) {
+                    pending.fail(error);
+                    return;
+                }
                 Uri imageUri = Uri.parse(imageUrl);
                 String fileName = imageUri.getLastPathSegment();
                 if (result == null) {
                     Log.e(TAG, "factory returned a null result");
-                    imageLoaderListener.onError(new ImageError("downloaded file could not be decoded as bitmap")
+                    pending.fail(new ImageError("downloaded file could not be decoded as bitmap")
                             .setErrorCode(ImageError.ERROR_DECODE_FAILED));
                 } else {
                     Log.d(TAG, "download complete, " + result);
-                    imageLoaderListener.onComplete(result, fileName);
+                    pending.complete(result, fileName);
 //                    saveImageToStorage(result, fileName);
                 }
-                urlsInProgress.remove(imageUrl);
-                System.gc();
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        };
+        pending.setTask(task);
+        scheduler.submit(task);
+    }
+
+    /**
+     * Attaches the listener to the transfer registered under the candidate's key,
+     * registering the candidate if none is in flight.
+     *
+     * @return the candidate if it was registered and the caller has to start it, or
+     * the transfer that is already running and the listener was attached to
+     */
+    private static PendingDownload register(PendingDownload candidate, OnImageLoaderListener listener,
+                                            int pos, boolean displayProgress) {
+        String key = candidate.getKey();
+        candidate.attach(listener, pos, displayProgress);
+        while (true) {
+            PendingDownload existing = inFlight.putIfAbsent(key, candidate);
+            if (existing == null) {
+                return candidate;
+            }
+            if (existing.attach(listener, pos, displayProgress)) {
+                Log.d(TAG, "a download for this url is already running, " +
+                        "attached to it (" + existing.subscriberCount() + " waiting)");
+                return existing;
+            }
+            // the existing transfer has just delivered its result, replace it
+            inFlight.remove(key, existing);
+        }
+    }
+
+    /**
+     * Stops delivering the transfer's result to the listener, letting the transfer go on
+     * into the caches even if nobody else waits for it.
+     */
+    static void release(@NonNull PendingDownload pending, @NonNull OnImageLoaderListener listener) {
+        if (pending.release(listener)) {
+            cancellationStats.onReleased();
+        }
+    }
+
+    /**
+     * Stops delivering the transfer's result to the listener. A transfer nobody else
+     * waits for is dropped if it has not started yet, or aborted if it is running.
+     */
+    static PendingDownload.Detach abandon(@NonNull PendingDownload pending,
+                                          @NonNull OnImageLoaderListener listener) {
+        PendingDownload.Detach result = pending.detach(listener, scheduler);
+        if (result == PendingDownload.Detach.DROPPED) {
+            cancellationStats.onDropped();
+        } else if (result == PendingDownload.Detach.ABORTED) {
+            cancellationStats.onAborted(pending.remainingBytes());
+            // a transfer waiting for memory gives up its place
+            memoryBudget.wakeWaiters();
+        } else {
+            return result;
+        }
+        // a new request for the same key starts a new transfer
+        inFlight.remove(pending.getKey(), pending);
+        return result;
+    }
+
+    /**
+     * @return the key of the in-flight registry, and of the memory cache for
+     * images whose digest is not known
+     */
+    static String bitmapKey(String imageUrl, DecodeOptions decodeOptions) {
+        if (decodeOptions.isOriginal()) return imageUrl;
+        return imageUrl + "#" + decodeOptions.toKey();
+    }
+
+    /**
+     * @return the memory cache key of an image with the given content, shared by
+     * every URL serving it
+     */
+    static String contentKey(String digest, DecodeOptions decodeOptions) {
+        if (decodeOptions.isOriginal()) return digest;
+        return digest + "#" + decodeOptions.toKey();
+    }
+
+    /**
+     * @return the memory cache key of the URL's image, by content if its digest is known
+     */
+    private static String memoryKey(String imageUrl, DecodeOptions decodeOptions) {
+        String digest = getMemoryCache().getDigest(imageUrl);
+        return digest != null ? contentKey(digest, decodeOptions) : bitmapKey(imageUrl, decodeOptions);
+    }
+
+    private static String fileKey(String imageUrl, String savePath) {
+        return imageUrl + "\n" + savePath;
+    }
+
+    /**
+     * @return the number of distinct transfers currently in flight
+     */
+    public static int inFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the scheduler shared by all {@link ImageDownloader} instances, e.g. to
+     * inspect queue depth or adjust its per-host limit
+     */
+    public static DownloadScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Reports a body read by a task on the shared scheduler to the concurrency controller.
+     * Its windows cover all transfers running at once, and only they feed the bandwidth
+     * estimator: a single connection only sees its share of the link.
+     */
+    private static void reportTransfer(long requestStart, long firstByte, long end, long bytes) {
+        if (concurrencyController.onResponse(requestStart, firstByte, end, bytes, scheduler.runningCount())) {
+            Log.d(TAG, "window ended: " + concurrencyController);
+        }
+    }
+
+    /**
+     * @return the controller that adapts the number of concurrent image downloads to the
+     * observed latency and throughput. Disable it before setting
+     * {@link DownloadScheduler#setMaxConcurrent(int)} by hand.
+     */
+    public static ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    /**
+     * @return the pool downloaded images are decoded on, sized to the CPU cores
+     * independently of the download concurrency
+     */
+    public static DecodeStage getDecodeStage() {
+        return decodeStage;
+    }
+
+    /**
+     * @return the budget buffered bodies and decodes reserve their memory from, so their
+     * peak stays bounded however many downloads are submitted
+     */
+    public static MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of transfers stopped because their callers cancelled them,
+     * and the bytes that were not downloaded as a result
+     */
+    public static CancellationStats getCancellationStats() {
+        return cancellationStats;
+    }
+
+    /**
+     * @return the per-host circuit breaker that fails requests fast while a host keeps failing
+     */
+    public static CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public static RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Replaces the policy deciding which failed downloads are repeated and when.
+     * Downloads that already failed keep the delay they were given.
+     */
+    public static void setRetryPolicy(@NonNull RetryPolicy policy) {
+        retryPolicy = policy;
     }
 
 
 
+    /**
+     * Saves the original bytes of the image at <i>imageUrl</i> into <i>target</i>
+     * without decoding or re-encoding them. The body is copied from the disk cache
+     * if it is there and streamed from the network otherwise. The appropriate callback
+     * of the listener is invoked on the main thread.
+     *
+     * @param imageUrl the URL of the image
+     * @param target   the file to write, replaced if it exists
+     * @param listener notified once the file has been written
+     */
+    public static void saveOriginal(@NonNull String imageUrl, @NonNull File target,
+                                    @NonNull OnBitmapSaveListener listener) {
+        saveOriginal(imageUrl, target, listener, null);
+    }
+
+    /**
+     * Same as {@link #saveOriginal(String, File, OnBitmapSaveListener)}, but the listener
+     * is dropped once the owner is destroyed, see {@link #bindTo(Activity)}. The file is
+     * still written. Must be called on the main thread.
+     *
+     * @param owner the Activity the listener belongs to, or null
+     */
+    public static void saveOriginal(@NonNull final String imageUrl, @NonNull final File target,
+                                    @NonNull OnBitmapSaveListener listener, @Nullable Activity owner) {
+        // the task only reaches the listener through the slot
+        final OwnerBindings.Slot<OnBitmapSaveListener> slot = new OwnerBindings.Slot<>(listener);
+        if (owner != null) {
+            registerOwnerBindings(owner);
+            ownerBindings.bind(owner, slot);
+        }
+        scheduler.submit(new DownloadScheduler.Task(imageUrl, DownloadScheduler.Priority.NORMAL) {
+            @Override
+            protected void execute() {
+                ImageError error = null;
+                Response response = null;
+                try {
+                    if (target.isDirectory()) {
+                        error = new ImageError("the target file is a directory")
+                                .setErrorCode(ImageError.ERROR_IS_DIRECTORY);
+                        return;
+                    }
+                    DiskCache diskCache = getDiskCache();
+                    DiskCache.Entry cached = diskCache != null ? diskCache.get(imageUrl) : null;
+                    if (cached != null) {
+                        try {
+                            FileTee.copyFile(cached.getFile(), target);
+                        } finally {
+                            cached.close();
+                        }
+                        return;
+                    }
+                    long requestStart = System.nanoTime();
+                    response = SharedHttpClient.get()
+                            .newCall(new Request.Builder().url(imageUrl).build()).execute();
+                    long firstByte = System.nanoTime();
+                    if (!response.isSuccessful()) {
+                        error = new ImageError("Server replied HTTP code: " + response.code())
+                                .setErrorCode(ImageError.ERROR_INVALID_FILE);
+                        return;
+                    }
+                    FileTee.Result written = FileTee.copy(response.body().byteStream(), target,
+                            response.body().contentLength(), null);
+                    reportTransfer(requestStart, firstByte, System.nanoTime(), written.getByteCount());
+                } catch (FileNotFoundException e) {
+                    error = new ImageError(e).setErrorCode(target.getParentFile() != null
+                            && !target.getParentFile().canWrite()
+                            ? ImageError.ERROR_PERMISSION_DENIED : ImageError.ERROR_INVALID_FILE);
+                } catch (Throwable e) {
+                    error = new ImageError(e).setErrorCode(ImageError.ERROR_GENERAL_EXCEPTION);
+                } finally {
+                    if (response != null) {
+                        response.close();
+                    }
+                    final ImageError result = error;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            OnBitmapSaveListener listener = slot.take();
+                            if (listener == null) return;
+                            if (result == null) {
+                                listener.onBitmapSaved();
+                            } else {
+                                listener.onBitmapSaveError(result);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
     /**
      * Interface definition for callbacks to be invoked when
      * the image save procedure status changes
@@ -374,8 +1562,21 @@ public class ImageDownloader {
      * @since 1.1
      */
     public static Bitmap readFromDisk(@NonNull File imageFile) {
+        return readFromDisk(imageFile, DecodeOptions.ORIGINAL);
+    }
+
+    /**
+     * Reads the given file as Bitmap, downsampled to the given target size. This is a
+     * blocking operation running on the main thread - avoid using it for large images.
+     *
+     * @param imageFile     the file to read
+     * @param decodeOptions the size and bit depth to decode the image at
+     * @return the Bitmap read from the file or null if the read fails
+     */
+    public static Bitmap readFromDisk(@NonNull File imageFile, @NonNull DecodeOptions decodeOptions) {
         if (!imageFile.exists() || imageFile.isDirectory()) return null;
-        return BitmapFactory.decodeFile(imageFile.getAbsolutePath());
+        // the main thread must not wait for the memory budget
+        return BitmapDecoder.decodeFile(imageFile.getAbsolutePath(), decodeOptions, getBitmapPool(), null, null);
     }
 
     /**
@@ -400,10 +1601,25 @@ public class ImageDownloader {
      * @since 1.1
      */
     public static void readFromDiskAsync(@NonNull File imageFile, @NonNull final OnImageReadListener listener) {
+        readFromDiskAsync(imageFile, DecodeOptions.ORIGINAL, listener);
+    }
+
+    /**
+     * Reads the given file as Bitmap in the background, downsampled to the given
+     * target size. The appropriate callback of the provided <i>OnImageReadListener</i>
+     * will be triggered upon completion.
+     *
+     * @param imageFile     the file to read
+     * @param decodeOptions the size and bit depth to decode the image at
+     * @param listener      the listener to notify the caller when the
+     *                      image read operation finishes
+     */
+    public static void readFromDiskAsync(@NonNull File imageFile, @NonNull final DecodeOptions decodeOptions,
+                                         @NonNull final OnImageReadListener listener) {
         new AsyncTask<String, Void, Bitmap>() {
             @Override
             protected Bitmap doInBackground(String... params) {
-                return BitmapFactory.decodeFile(params[0]);
+                return BitmapDecoder.decodeFile(params[0], decodeOptions, getBitmapPool(), memoryBudget, null);
             }
 
             @Override
@@ -451,6 +1667,10 @@ public class ImageDownloader {
          * The target file is a directory
          */
         public static final int ERROR_IS_DIRECTORY = 4;
+        /**
+         * The host failed repeatedly and is not contacted for a while, see {@link CircuitBreaker}
+         */
+        public static final int ERROR_HOST_UNAVAILABLE = 5;
 
 
         public ImageError(@NonNull String message) {
@@ -18,7 +18,6 @@ import android.widget.Toast;
 import com.downloadimages.utils.DownloadFile;
 import com.downloadimages.utils.Utility;
 import com.mikhaellopez.circularprogressbar.CircularProgressBar;
-import com.squareup.picasso.Picasso;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -42,6 +41,8 @@ public class MainActivity extends AppCompatActivity {
     Date startDate;
     @Bind(R.id.progressBar)
     CircularProgressBar progressBar;
+    DownloadHandle downloadHandle;
+    Bitmap displayedBitmap;
 
     @OnClick(R.id.downloadBtn)
     void onDownloadBtnClick(View v) {
@@ -49,6 +50,10 @@ public class MainActivity extends AppCompatActivity {
         startDate = new Date(System.currentTimeMillis());
         String url = urlText.getText().toString();
         if (!TextUtils.isEmpty(url)) {
+            if (downloadHandle != null) {
+                // only the latest URL is shown
+                downloadHandle.cancel();
+            }
             downloadFile(url);
 //            downloadFile.downloadFile(url);
         }
@@ -61,7 +66,24 @@ public class MainActivity extends AppCompatActivity {
         ButterKnife.bind(this);
     }
 
-    private void downloadFile(String url) {
+    @Override
+    protected void onDestroy() {
+        showBitmap(null);
+        super.onDestroy();
+    }
+
+    /**
+     * Displays the bitmap and gives the previous one back to the downloader.
+     */
+    private void showBitmap(Bitmap bitmap) {
+        imageView.setImageBitmap(bitmap);
+        if (displayedBitmap != null) {
+            ImageDownloader.releaseBitmap(displayedBitmap);
+        }
+        displayedBitmap = bitmap;
+    }
+
+    private void downloadFile(final String url) {
         final Uri imageUri = Uri.parse(url);
         String fileName = imageUri.getLastPathSegment();
         if (TextUtils.isEmpty(fileName)) {
@@ -99,17 +121,10 @@ public class MainActivity extends AppCompatActivity {
                     Log.d("pos", ">>>>>" + pos);
                 }
                 if (null != result) {
-//                    Bitmap b = Bitmap.createScaledBitmap(result, 1000, 1000, false);//scale the bitmap
-//                    imageView.setImageBitmap(b);
-                    String filePath = Utility.saveImageToStorage(result, dirPath, finalFileName);
-                    Toast.makeText(MainActivity.this, filePath, Toast.LENGTH_LONG).show();
-//                    imageView.setImageURI(Uri.fromFile(new File(filePath)));
-                    Picasso.with(MainActivity.this)
-                            .load(new File(filePath))
-                            .resize(1000, 1000)
-                            .centerCrop()
-                            .into(imageView);
+                    // already decoded at the preview size
+                    showBitmap(result);
                     totalTime.setText(Utility.printDifference(startDate));
+                    saveOriginal(url, new File(dirPath, finalFileName));
                 } else {
                     Toast.makeText(MainActivity.this, R.string.download_error, Toast.LENGTH_LONG).show();
                 }
@@ -124,8 +139,31 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         };
-        ImageDownloader imageDownloader = new ImageDownloader(onImageLoaderListener);
-        imageDownloader.download(url, 0, true);
+        // bound to this activity, the listener is detached once it is destroyed
+        ImageDownloader imageDownloader = new ImageDownloader(this, onImageLoaderListener);
+        // the preview is shown at most 1000x1000, no need to decode the full resolution
+        downloadHandle = imageDownloader.download(url, 0, true, DownloadScheduler.Priority.HIGH,
+                new DecodeOptions(1000, 1000, DecodeOptions.ScaleMode.FILL, true));
+    }
+
+    /**
+     * Stores the bytes the server sent as they are, instead of re-encoding the decoded bitmap.
+     */
+    private void saveOriginal(String url, final File imageFile) {
+        ImageDownloader.saveOriginal(url, imageFile, new ImageDownloader.OnBitmapSaveListener() {
+            @Override
+            public void onBitmapSaved() {
+                String filePath = imageFile.getAbsolutePath();
+                Toast.makeText(MainActivity.this, filePath, Toast.LENGTH_LONG).show();
+            }
+
+            @Override
+            public void onBitmapSaveError(ImageDownloader.ImageError error) {
+                if (Utility.isDebug)
+                    Log.d("onBitmapSaveError", ">>>>>" + error.getMessage());
+                Toast.makeText(MainActivity.this, R.string.download_error, Toast.LENGTH_LONG).show();
+            }
+        }, this);
     }
 
 }
@@ -0,0 +1,304 @@
+package com.downloadimages;
+
+import android.support.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Admission control for the memory downloads take outside the caches. A response body
+ * is reserved by its {@code Content-Length} before it is buffered, and a decode by the
+ * size of the bitmap its bounds pass predicts. Work that does not fit waits, in the
+ * order it arrived, until earlier work released its share.
+ * <p>
+ * Buffered bodies may take at most half of the capacity, so the decode of a body that
+ * is already buffered always gets room eventually. Bodies larger than
+ * {@link #getMaxBufferedBytes()} or of unknown length are not buffered at all but
+ * spilled to a file. A single decode larger than the capacity runs once no other
+ * decode does. The memory held by running downloads thus stays around the capacity
+ * however many of them are submitted. Waiting work that is cancelled gives up its
+ * place once {@link #wakeWaiters()} is called.
+ */
+public final class MemoryBudget {
+
+    /**
+     * Share of the capacity a single buffered body may take, as its reciprocal
+     */
+    public static final int MAX_BUFFERED_FRACTION = 8;
+
+    /**
+     * Tells waiting work that it is not needed anymore. Checked with the budget's lock
+     * held, so it must not take other locks.
+     */
+    interface Cancellation {
+        boolean isCancelled();
+    }
+
+    /**
+     * Memory reserved for one body or decode, to be released once it is not used anymore.
+     */
+    public final class Reservation {
+        private final long bytes;
+        private final boolean body;
+        private boolean released;
+
+        private Reservation(long bytes, boolean body) {
+            this.bytes = bytes;
+            this.body = body;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Returns the memory to the budget. Further calls do nothing.
+         */
+        public void release() {
+            MemoryBudget.this.release(this);
+        }
+    }
+
+    private long capacity;
+    private long used;
+    private long bodyUsed;
+    private long decodeUsed;
+    private long peakUsed;
+    // bodies and decodes queue separately, a waiting body must not hold up decodes
+    private long nextBodyTicket;
+    private long servingBodyTicket;
+    private long nextDecodeTicket;
+    private long servingDecodeTicket;
+    // tickets given up while earlier ones were still waiting
+    private final Set<Long> cancelledBodyTickets = new HashSet<>();
+    private final Set<Long> cancelledDecodeTickets = new HashSet<>();
+    private long waitCount;
+    private long waitNanos;
+    private long spillCount;
+
+    /**
+     * Creates a budget of a quarter of the maximum heap size.
+     */
+    public MemoryBudget() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    public MemoryBudget(long capacity) {
+        setCapacity(capacity);
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the capacity. Reservations above a lower capacity are kept until they
+     * are released, new work waits until enough of them are.
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+        this.capacity = capacity;
+        notifyAll();
+    }
+
+    /**
+     * @return the largest body that is buffered in memory rather than spilled to a file
+     */
+    public synchronized long getMaxBufferedBytes() {
+        return capacity / MAX_BUFFERED_FRACTION;
+    }
+
+    /**
+     * @param contentLength the length of a response body, or -1 if it is not known
+     * @return true if the body may be buffered in memory, false if it has to be spilled
+     * to a file
+     */
+    public synchronized boolean canBuffer(long contentLength) {
+        return contentLength >= 0 && contentLength <= getMaxBufferedBytes();
+    }
+
+    /**
+     * Reserves memory for a response body, waiting while buffered bodies hold half of
+     * the capacity or the whole budget is in use.
+     */
+    Reservation reserveBody(long bytes) {
+        return reserve(bytes, true, null);
+    }
+
+    /**
+     * Same as {@link #reserveBody(long)}, but gives up if the cancellation is set
+     * while waiting.
+     *
+     * @return the reservation, or null if it was cancelled
+     */
+    @Nullable
+    Reservation reserveBody(long bytes, @Nullable Cancellation cancellation) {
+        return reserve(bytes, true, cancellation);
+    }
+
+    /**
+     * Reserves memory for a bitmap that is about to be decoded, waiting while the budget
+     * is in use unless no other decode is running.
+     */
+    Reservation reserveDecode(long bytes) {
+        return reserve(bytes, false, null);
+    }
+
+    /**
+     * Same as {@link #reserveDecode(long)}, but gives up if the cancellation is set
+     * while waiting.
+     *
+     * @return the reservation, or null if it was cancelled
+     */
+    @Nullable
+    Reservation reserveDecode(long bytes, @Nullable Cancellation cancellation) {
+        return reserve(bytes, false, cancellation);
+    }
+
+    /**
+     * Wakes waiting work so a cancelled one notices, e.g. after a download was aborted.
+     */
+    synchronized void wakeWaiters() {
+        notifyAll();
+    }
+
+    private synchronized Reservation reserve(long bytes, boolean body, @Nullable Cancellation cancellation) {
+        if (bytes < 0) throw new IllegalArgumentException("bytes < 0");
+        long ticket = body ? nextBodyTicket++ : nextDecodeTicket++;
+        boolean interrupted = false;
+        long waitStart = 0;
+        try {
+            while (!admits(ticket, bytes, body)) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    cancel(ticket, body);
+                    return null;
+                }
+                if (waitStart == 0) {
+                    waitStart = System.nanoTime();
+                    waitCount++;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (waitStart != 0) {
+                waitNanos += System.nanoTime() - waitStart;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (body) {
+            bodyUsed += bytes;
+        } else {
+            decodeUsed += bytes;
+        }
+        advance(body);
+        used += bytes;
+        peakUsed = Math.max(peakUsed, used);
+        // the next in line may fit as well
+        notifyAll();
+        return new Reservation(bytes, body);
+    }
+
+    /**
+     * Gives up a waiting ticket, so the queue does not stop at it.
+     */
+    private void cancel(long ticket, boolean body) {
+        if (ticket == (body ? servingBodyTicket : servingDecodeTicket)) {
+            advance(body);
+            // the next in line may fit now
+            notifyAll();
+        } else {
+            (body ? cancelledBodyTickets : cancelledDecodeTickets).add(ticket);
+        }
+    }
+
+    /**
+     * Moves on to the next ticket that is still waiting.
+     */
+    private void advance(boolean body) {
+        if (body) {
+            do {
+                servingBodyTicket++;
+            } while (cancelledBodyTickets.remove(servingBodyTicket));
+        } else {
+            do {
+                servingDecodeTicket++;
+            } while (cancelledDecodeTickets.remove(servingDecodeTicket));
+        }
+    }
+
+    private boolean admits(long ticket, long bytes, boolean body) {
+        if (body) {
+            if (ticket != servingBodyTicket) return false;
+            return used == 0 || (bodyUsed + bytes <= capacity / 2 && used + bytes <= capacity);
+        }
+        if (ticket != servingDecodeTicket) return false;
+        return decodeUsed == 0 || used + bytes <= capacity;
+    }
+
+    private synchronized void release(Reservation reservation) {
+        if (reservation.released) return;
+        reservation.released = true;
+        if (reservation.body) {
+            bodyUsed -= reservation.bytes;
+        } else {
+            decodeUsed -= reservation.bytes;
+        }
+        used -= reservation.bytes;
+        notifyAll();
+    }
+
+    /**
+     * Records a body that was written to a file instead of being buffered.
+     */
+    synchronized void onSpilled() {
+        spillCount++;
+    }
+
+    /**
+     * @return the bytes currently reserved
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * @return the most bytes that were reserved at once
+     */
+    public synchronized long getPeakUsed() {
+        return peakUsed;
+    }
+
+    /**
+     * @return how often a body or decode had to wait for memory
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * @return the total time bodies and decodes waited for memory
+     */
+    public synchronized long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * @return the number of bodies spilled to a file
+     */
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryBudget{used=" + used / 1024 + "KB/" + capacity / 1024 + "KB bodies=" + bodyUsed / 1024
+                + "KB decodes=" + decodeUsed / 1024 + "KB peak=" + peakUsed / 1024 + "KB waits=" + waitCount
+                + " (" + waitNanos / 1000000 + "ms) spilled=" + spillCount + "}";
+    }
+}
@@ -0,0 +1,218 @@
+package com.downloadimages;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reacts to the memory signals of the system in steps. Every
+ * {@link ComponentCallbacks2#onTrimMemory(int)} level maps to a {@link Severity}, and
+ * each severity shrinks the memory cache and the bitmap pool, holds back
+ * {@link DownloadScheduler.Priority#LOW} work such as prefetches, and lowers decode
+ * concurrency and the {@link MemoryBudget} further than the one before. Once no signal
+ * arrived for {@link #RECOVERY_INTERVAL_MILLIS}, {@link #recover(long)} steps back one
+ * severity at a time, so a burst of loading right after the pressure eased does not
+ * bring it back at once.
+ * <p>
+ * Times are passed in as {@link System#nanoTime()} values.
+ */
+public final class MemoryPressure {
+
+    public enum Severity {
+        /**
+         * Everything runs at its configured limits
+         */
+        NONE,
+        /**
+         * Memory is getting short or the UI is hidden: low priority work is held back
+         * and half of the memory cache dropped
+         */
+        MODERATE,
+        /**
+         * The process is likely to be killed or the system struggles: the bitmap pool
+         * is emptied, decode concurrency and the memory budget are halved
+         */
+        LOW,
+        /**
+         * The process is next in line to be killed: the memory cache is emptied and
+         * images are decoded one at a time
+         */
+        CRITICAL
+    }
+
+    /**
+     * A cache whose size can be held below its maximum, such as {@link BitmapMemoryCache}
+     * and {@link BitmapPool}.
+     */
+    public interface Trimmable {
+        int maxSize();
+
+        /**
+         * Drops entries above the limit and keeps the cache within it from now on.
+         */
+        void setSizeLimit(int sizeLimit);
+    }
+
+    public static final long RECOVERY_INTERVAL_MILLIS = 30000;
+
+    private final Trimmable memoryCache;
+    private final Trimmable bitmapPool;
+    private final DecodeStage decodeStage;
+    private final DownloadScheduler scheduler;
+    private final MemoryBudget memoryBudget;
+    private final long recoveryIntervalNanos;
+    private final Map<Integer, Long> trimCounts = new TreeMap<>();
+    private Severity severity = Severity.NONE;
+    private long lastSignalNanos;
+    private long lowMemoryCount;
+    private int baseDecodeThreads;
+    private long baseBudget;
+
+    public MemoryPressure(@NonNull BitmapMemoryCache memoryCache, @NonNull DecodeStage decodeStage,
+                          @NonNull DownloadScheduler scheduler, @NonNull MemoryBudget memoryBudget) {
+        this(memoryCache, memoryCache.getBitmapPool(), decodeStage, scheduler, memoryBudget,
+                RECOVERY_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param recoveryIntervalMillis how long no signal has to arrive before each step back
+     */
+    public MemoryPressure(@NonNull Trimmable memoryCache, @NonNull Trimmable bitmapPool,
+                          @NonNull DecodeStage decodeStage, @NonNull DownloadScheduler scheduler,
+                          @NonNull MemoryBudget memoryBudget, long recoveryIntervalMillis) {
+        this.memoryCache = memoryCache;
+        this.bitmapPool = bitmapPool;
+        this.decodeStage = decodeStage;
+        this.scheduler = scheduler;
+        this.memoryBudget = memoryBudget;
+        this.recoveryIntervalNanos = TimeUnit.MILLISECONDS.toNanos(recoveryIntervalMillis);
+    }
+
+    /**
+     * @param level a {@code TRIM_MEMORY_*} level of {@link ComponentCallbacks2}
+     * @return the severity the level maps to
+     */
+    static Severity severityOf(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) return Severity.CRITICAL;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) return Severity.LOW;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) return Severity.MODERATE;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) return Severity.CRITICAL;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return Severity.LOW;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) return Severity.MODERATE;
+        return Severity.NONE;
+    }
+
+    /**
+     * Records the level and raises the severity to it, trimming again even if it is
+     * not higher than the current one.
+     */
+    public synchronized void onTrimMemory(int level, long nowNanos) {
+        Long count = trimCounts.get(level);
+        trimCounts.put(level, count == null ? 1 : count + 1);
+        raise(severityOf(level), nowNanos);
+    }
+
+    /**
+     * Same as a {@link Severity#CRITICAL} trim level, for
+     * {@link android.content.ComponentCallbacks#onLowMemory()}.
+     */
+    public synchronized void onLowMemory(long nowNanos) {
+        lowMemoryCount++;
+        raise(Severity.CRITICAL, nowNanos);
+    }
+
+    private void raise(Severity target, long nowNanos) {
+        if (target == Severity.NONE) return;
+        if (severity == Severity.NONE) {
+            // the limits to return to
+            baseDecodeThreads = decodeStage.getThreadCount();
+            baseBudget = memoryBudget.getCapacity();
+        }
+        lastSignalNanos = nowNanos;
+        if (target.compareTo(severity) > 0) {
+            severity = target;
+        }
+        apply();
+    }
+
+    /**
+     * Steps back one severity if no signal arrived for the recovery interval.
+     *
+     * @return true if there is still pressure to recover from, so this should be
+     * called again after the recovery interval
+     */
+    public synchronized boolean recover(long nowNanos) {
+        if (severity == Severity.NONE) return false;
+        if (nowNanos - lastSignalNanos >= recoveryIntervalNanos) {
+            severity = Severity.values()[severity.ordinal() - 1];
+            // the next step waits another interval
+            lastSignalNanos = nowNanos;
+            apply();
+        }
+        return severity != Severity.NONE;
+    }
+
+    private void apply() {
+        int cacheMax = memoryCache.maxSize();
+        int poolMax = bitmapPool.maxSize();
+        switch (severity) {
+            case NONE:
+                memoryCache.setSizeLimit(cacheMax);
+                bitmapPool.setSizeLimit(poolMax);
+                scheduler.setLowPriorityPaused(false);
+                decodeStage.setThreadCount(baseDecodeThreads);
+                memoryBudget.setCapacity(baseBudget);
+                break;
+            case MODERATE:
+                memoryCache.setSizeLimit(cacheMax / 2);
+                bitmapPool.setSizeLimit(poolMax / 2);
+                scheduler.setLowPriorityPaused(true);
+                decodeStage.setThreadCount(baseDecodeThreads);
+                memoryBudget.setCapacity(baseBudget);
+                break;
+            case LOW:
+                memoryCache.setSizeLimit(cacheMax / 4);
+                bitmapPool.setSizeLimit(0);
+                scheduler.setLowPriorityPaused(true);
+                decodeStage.setThreadCount(Math.max(1, baseDecodeThreads / 2));
+                memoryBudget.setCapacity(Math.max(1, baseBudget / 2));
+                break;
+            case CRITICAL:
+                memoryCache.setSizeLimit(0);
+                bitmapPool.setSizeLimit(0);
+                scheduler.setLowPriorityPaused(true);
+                decodeStage.setThreadCount(1);
+                memoryBudget.setCapacity(Math.max(1, baseBudget / 4));
+                break;
+        }
+    }
+
+    @NonNull
+    public synchronized Severity getSeverity() {
+        return severity;
+    }
+
+    /**
+     * @param level a {@code TRIM_MEMORY_*} level of {@link ComponentCallbacks2}
+     * @return how often the system reported the level
+     */
+    public synchronized long getTrimCount(int level) {
+        Long count = trimCounts.get(level);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return how often the system reported {@link android.content.ComponentCallbacks#onLowMemory()}
+     */
+    public synchronized long getLowMemoryCount() {
+        return lowMemoryCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryPressure{" + severity + " trims=" + trimCounts + " lowMemory=" + lowMemoryCount + "}";
+    }
+}
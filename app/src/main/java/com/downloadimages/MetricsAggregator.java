@@ -0,0 +1,99 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Folds {@link DownloadMetrics} into one {@link Histogram} per phase, so many downloads
+ * can be summarized without keeping them. Durations are recorded in microseconds and
+ * sizes in bytes. Register it with {@link ImageDownloader#addMetricsListener(ImageDownloader.OnMetricsListener)}
+ * and {@link #dump()} it, e.g. from a debug menu.
+ */
+public final class MetricsAggregator implements ImageDownloader.OnMetricsListener {
+
+    /**
+     * The aggregated values.
+     */
+    public enum Metric {
+        QUEUE_WAIT, DNS, CONNECT, TLS, TTFB, TRANSFER, DECODE, DISK_WRITE, TOTAL, WIRE_BYTES, DECODED_BYTES
+    }
+
+    private final Map<Metric, Histogram> histograms = new EnumMap<>(Metric.class);
+    private final AtomicLongArray sourceCounts = new AtomicLongArray(DownloadMetrics.Source.values().length);
+    private final AtomicLongArray failureCounts = new AtomicLongArray(DownloadMetrics.Source.values().length);
+
+    public MetricsAggregator() {
+        for (Metric metric : Metric.values()) {
+            histograms.put(metric, new Histogram());
+        }
+    }
+
+    @Override
+    public void onMetrics(@NonNull DownloadMetrics metrics) {
+        sourceCounts.incrementAndGet(metrics.getSource().ordinal());
+        if (!metrics.isSuccess()) {
+            failureCounts.incrementAndGet(metrics.getSource().ordinal());
+        }
+        recordNanos(Metric.QUEUE_WAIT, metrics.getQueueWaitNanos());
+        recordNanos(Metric.DNS, metrics.getDnsNanos());
+        recordNanos(Metric.CONNECT, metrics.getConnectNanos());
+        recordNanos(Metric.TLS, metrics.getTlsNanos());
+        recordNanos(Metric.TTFB, metrics.getTtfbNanos());
+        recordNanos(Metric.TRANSFER, metrics.getTransferNanos());
+        recordNanos(Metric.DECODE, metrics.getDecodeNanos());
+        recordNanos(Metric.DISK_WRITE, metrics.getDiskWriteNanos());
+        recordNanos(Metric.TOTAL, metrics.getTotalNanos());
+        histograms.get(Metric.WIRE_BYTES).record(metrics.getWireBytes());
+        histograms.get(Metric.DECODED_BYTES).record(metrics.getDecodedBytes());
+    }
+
+    private void recordNanos(Metric metric, long nanos) {
+        histograms.get(metric).record(nanos < 0 ? -1 : nanos / 1000);
+    }
+
+    @NonNull
+    public Histogram getHistogram(@NonNull Metric metric) {
+        return histograms.get(metric);
+    }
+
+    /**
+     * @return the number of requests served from the given source, failed ones included
+     */
+    public long getCount(@NonNull DownloadMetrics.Source source) {
+        return sourceCounts.get(source.ordinal());
+    }
+
+    public long getFailureCount(@NonNull DownloadMetrics.Source source) {
+        return failureCounts.get(source.ordinal());
+    }
+
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (int i = 0; i < sourceCounts.length(); i++) {
+            sourceCounts.set(i, 0);
+            failureCounts.set(i, 0);
+        }
+    }
+
+    /**
+     * @return one line per source and per metric, e.g. for logging
+     */
+    @NonNull
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (DownloadMetrics.Source source : DownloadMetrics.Source.values()) {
+            builder.append(source).append(": ").append(getCount(source))
+                    .append(" (").append(getFailureCount(source)).append(" failed)\n");
+        }
+        for (Metric metric : Metric.values()) {
+            builder.append(metric).append(metric == Metric.WIRE_BYTES || metric == Metric.DECODED_BYTES
+                    ? " [bytes] " : " [us] ").append(histograms.get(metric)).append('\n');
+        }
+        return builder.toString();
+    }
+}
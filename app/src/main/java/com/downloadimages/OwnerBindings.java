@@ -0,0 +1,179 @@
+package com.downloadimages;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ties listeners to the {@link Activity} that registered them, so a destroyed Activity
+ * is not kept alive by the transfers it waited for. When the owner is destroyed its
+ * listeners are detached at once: for a configuration change the transfers go on and
+ * park their results in the caches for the recreated Activity, otherwise they are
+ * cancelled like with {@link DownloadHandle#cancel()}.
+ * <p>
+ * Must only be used from the main thread.
+ */
+final class OwnerBindings implements Application.ActivityLifecycleCallbacks {
+
+    /**
+     * A listener waiting for a result on behalf of an owner.
+     */
+    interface Binding {
+        /**
+         * @return false once the result was delivered, so the binding can be forgotten
+         */
+        boolean isWaiting();
+
+        /**
+         * Drops the listener.
+         *
+         * @param changingConfigurations true if the owner is recreated right away
+         */
+        void onOwnerDestroyed(boolean changingConfigurations);
+    }
+
+    /**
+     * A listener subscribed to a shared transfer.
+     */
+    private static final class Subscription implements Binding {
+        final PendingDownload pending;
+        final ImageDownloader.OnImageLoaderListener listener;
+
+        Subscription(PendingDownload pending, ImageDownloader.OnImageLoaderListener listener) {
+            this.pending = pending;
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean isWaiting() {
+            return pending.isWaiting(listener);
+        }
+
+        @Override
+        public void onOwnerDestroyed(boolean changingConfigurations) {
+            if (changingConfigurations) {
+                // the recreated instance may ask for the same images again
+                ImageDownloader.release(pending, listener);
+            } else {
+                ImageDownloader.abandon(pending, listener);
+            }
+        }
+    }
+
+    /**
+     * Holds the listener of a task that is not a shared transfer. The task takes it on
+     * the main thread when it delivers, and finds nothing once the owner is destroyed,
+     * so the task itself never references the listener.
+     */
+    static final class Slot<T> implements Binding {
+        private T listener;
+        private DownloadScheduler.Task task;
+
+        Slot(@NonNull T listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * @param task dropped from the scheduler's queue if the owner is destroyed
+         *             before it started, or null to let the task run regardless
+         */
+        void setTask(@Nullable DownloadScheduler.Task task) {
+            this.task = task;
+        }
+
+        /**
+         * @return the listener to deliver to, or null if the owner was destroyed. Only
+         * returns it once.
+         */
+        @Nullable
+        T take() {
+            T result = listener;
+            listener = null;
+            return result;
+        }
+
+        @Override
+        public boolean isWaiting() {
+            return listener != null;
+        }
+
+        @Override
+        public void onOwnerDestroyed(boolean changingConfigurations) {
+            listener = null;
+            if (task != null) {
+                ImageDownloader.getScheduler().cancel(task);
+            }
+        }
+    }
+
+    private final Map<Activity, List<Binding>> bindings = new HashMap<>();
+
+    /**
+     * Detaches the listener from the transfer once the owner is destroyed.
+     */
+    void bind(@NonNull Activity owner, @NonNull PendingDownload pending,
+              @NonNull ImageDownloader.OnImageLoaderListener listener) {
+        bind(owner, new Subscription(pending, listener));
+    }
+
+    /**
+     * Drops the binding's listener once the owner is destroyed. Bindings that have
+     * delivered meanwhile are forgotten.
+     */
+    void bind(@NonNull Activity owner, @NonNull Binding binding) {
+        List<Binding> owned = bindings.get(owner);
+        if (owned == null) {
+            owned = new ArrayList<>();
+            bindings.put(owner, owned);
+        } else {
+            for (Iterator<Binding> it = owned.iterator(); it.hasNext(); ) {
+                if (!it.next().isWaiting()) {
+                    it.remove();
+                }
+            }
+        }
+        owned.add(binding);
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        List<Binding> owned = bindings.remove(activity);
+        if (owned == null) return;
+        boolean changingConfigurations = activity.isChangingConfigurations();
+        for (Binding binding : owned) {
+            binding.onOwnerDestroyed(changingConfigurations);
+        }
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+}
@@ -0,0 +1,250 @@
+package com.downloadimages;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A transfer that is currently in flight, together with every caller waiting
+ * for its result. Duplicate requests for the same key attach to the existing
+ * instance instead of starting a second transfer; each subscriber keeps its
+ * own listener and position.
+ */
+final class PendingDownload implements MemoryBudget.Cancellation {
+
+    /**
+     * What {@link #detach} did to the transfer.
+     */
+    enum Detach {
+        /**
+         * The listener was not waiting, e.g. because the result has been delivered
+         */
+        NOT_ATTACHED,
+        /**
+         * The listener will not be notified, the transfer goes on for others
+         */
+        DETACHED,
+        /**
+         * The transfer was taken off the queue before it started
+         */
+        DROPPED,
+        /**
+         * The transfer was running and has been aborted
+         */
+        ABORTED
+    }
+
+    /**
+     * Stops the I/O of a running transfer, so a read blocked on the network ends.
+     * Called with the transfer's lock held, from the thread that detached.
+     */
+    interface Abort {
+        void abort();
+    }
+
+    private final String key;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private boolean finished;
+    private volatile boolean aborted;
+    private DownloadScheduler.Task task;
+    private Abort abort;
+    private long bytesRead;
+    private long contentLength = -1;
+
+    PendingDownload(@NonNull String key) {
+        this.key = key;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * @param task the scheduler task performing this transfer, so it can be
+     *             dropped from the queue once nobody waits for it anymore
+     */
+    synchronized void setTask(@NonNull DownloadScheduler.Task task) {
+        this.task = task;
+    }
+
+    /**
+     * Adds a caller to this transfer.
+     *
+     * @return false if the result has already been delivered, in which case
+     * the caller has to start a new transfer
+     */
+    synchronized boolean attach(@NonNull ImageDownloader.OnImageLoaderListener listener, int pos,
+                                boolean displayProgress) {
+        if (finished) return false;
+        subscribers.add(new Subscriber(listener, pos, displayProgress));
+        return true;
+    }
+
+    /**
+     * @param abort stops the I/O the running transfer is blocked on, or null once
+     *              there is none. Runs at once if the transfer has been aborted already.
+     */
+    synchronized void setAbort(@Nullable Abort abort) {
+        this.abort = abort;
+        if (aborted && abort != null) {
+            abort.abort();
+        }
+    }
+
+    /**
+     * @return true if every caller left while the transfer was running, so it must
+     * stop without decoding or retrying
+     */
+    synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Same as {@link #isAborted()} without taking the lock, for the {@link MemoryBudget}.
+     */
+    @Override
+    public boolean isCancelled() {
+        return aborted;
+    }
+
+    /**
+     * Records how much of the response body has been read so far.
+     *
+     * @param contentLength the length of the body, or -1 if it is not known
+     */
+    synchronized void onBytesRead(long bytesRead, long contentLength) {
+        this.bytesRead = bytesRead;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * @return the bytes of the body that have not been read yet, or -1 if its length is not known
+     */
+    synchronized long remainingBytes() {
+        return contentLength < 0 ? -1 : Math.max(0, contentLength - bytesRead);
+    }
+
+    /**
+     * Removes a caller. If it was the last one, a transfer that has not started yet is
+     * taken off the scheduler's queue, and a running one is aborted. Either way it will
+     * never deliver and has to be unregistered.
+     */
+    synchronized Detach detach(@NonNull ImageDownloader.OnImageLoaderListener listener,
+                               @NonNull DownloadScheduler scheduler) {
+        if (!release(listener)) return Detach.NOT_ATTACHED;
+        if (finished || !subscribers.isEmpty() || task == null) return Detach.DETACHED;
+        finished = true;
+        if (scheduler.cancel(task)) return Detach.DROPPED;
+        aborted = true;
+        if (abort != null) {
+            abort.abort();
+        }
+        return Detach.ABORTED;
+    }
+
+    /**
+     * Removes a caller without stopping the transfer, even if it was the last one. The
+     * result then only goes to the caches, and later callers may still attach.
+     *
+     * @return false if the listener was not waiting
+     */
+    synchronized boolean release(@NonNull ImageDownloader.OnImageLoaderListener listener) {
+        for (int i = 0; i < subscribers.size(); i++) {
+            if (subscribers.get(i).listener == listener) {
+                subscribers.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the listener will be notified of the result
+     */
+    synchronized boolean isWaiting(@NonNull ImageDownloader.OnImageLoaderListener listener) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.listener == listener) return true;
+        }
+        return false;
+    }
+
+    synchronized int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return true if any subscriber listens to progress, so the transfer has to report it
+     */
+    synchronized boolean wantsProgress() {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.displayProgress || subscriber.listener instanceof ImageDownloader.OnProgressListener) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies {@link ImageDownloader.OnProgressListener}s of the event, and subscribers
+     * that asked to display progress of its percentage if it is not indeterminate.
+     */
+    void progress(@NonNull ProgressEvent event) {
+        for (Subscriber subscriber : snapshot()) {
+            if (subscriber.listener instanceof ImageDownloader.OnProgressListener) {
+                ((ImageDownloader.OnProgressListener) subscriber.listener).onProgress(event);
+            }
+            if (subscriber.displayProgress && !event.isIndeterminate()) {
+                subscriber.listener.onProgressChange(event.getPercent());
+            }
+        }
+    }
+
+    /**
+     * Delivers the bitmap with a reference taken for every subscriber, which it gives
+     * back through {@link ImageDownloader#releaseBitmap(Bitmap)}.
+     */
+    void complete(@NonNull Bitmap result, String fileName, @NonNull BitmapMemoryCache memoryCache) {
+        for (Subscriber subscriber : finish()) {
+            memoryCache.acquire(result);
+            subscriber.listener.onComplete(result, fileName, subscriber.pos);
+        }
+    }
+
+    void complete(@NonNull String path, String fileName) {
+        for (Subscriber subscriber : finish()) {
+            subscriber.listener.onComplete(path, fileName);
+        }
+    }
+
+    void fail(@NonNull ImageDownloader.ImageError error) {
+        for (Subscriber subscriber : finish()) {
+            subscriber.listener.onError(error);
+        }
+    }
+
+    private synchronized List<Subscriber> snapshot() {
+        return new ArrayList<>(subscribers);
+    }
+
+    private synchronized List<Subscriber> finish() {
+        finished = true;
+        List<Subscriber> result = new ArrayList<>(subscribers);
+        subscribers.clear();
+        return result;
+    }
+
+    private static final class Subscriber {
+        final ImageDownloader.OnImageLoaderListener listener;
+        final int pos;
+        final boolean displayProgress;
+
+        Subscriber(ImageDownloader.OnImageLoaderListener listener, int pos, boolean displayProgress) {
+            this.listener = listener;
+            this.pos = pos;
+            this.displayProgress = displayProgress;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.downloadimages;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches the images a list or grid is about to show. The UI reports the visible
+ * range and the scroll direction with {@link #onVisibleRangeChanged(int, int, Direction)};
+ * the next {@link #getDistance()} positions in that direction are then requested with
+ * {@link DownloadScheduler.Priority#LOW} priority, so they never delay visible images.
+ * Prefetches that fall out of that window before they started are dropped from the
+ * queue; decoding ones that are running are aborted unless the adapter waits for them.
+ * <p>
+ * With {@link DecodeOptions} the images are decoded into the memory cache, and the
+ * adapter's own {@link ImageDownloader#download} with the same options gets them
+ * without delay. Without, they are only stored in the disk cache. Either way the bytes
+ * fetched ahead and not shown yet are limited by {@link #getByteBudget()}: decoded
+ * bytes when decoding, file bytes otherwise.
+ * <p>
+ * Must only be used from the main thread.
+ */
+public final class Prefetcher {
+
+    public enum Direction {
+        /**
+         * Towards higher positions
+         */
+        FORWARD,
+        /**
+         * Towards lower positions
+         */
+        BACKWARD
+    }
+
+    /**
+     * Maps the positions of the list to image URLs, usually implemented by the adapter.
+     */
+    public interface UrlProvider {
+        int getCount();
+
+        /**
+         * @return the image URL at the position, or null if it has none
+         */
+        @Nullable
+        String getUrl(int position);
+    }
+
+    public static final int DEFAULT_DISTANCE = 8;
+    public static final long DEFAULT_BYTE_BUDGET = 8 * 1024 * 1024;
+    /**
+     * Assumed size of an image until the first prefetch completed
+     */
+    private static final long INITIAL_SIZE_ESTIMATE = 256 * 1024;
+
+    private final ImageDownloader downloader;
+    private final UrlProvider urlProvider;
+    private final Map<Integer, Prefetch> prefetches = new HashMap<>();
+    private int distance = DEFAULT_DISTANCE;
+    private long byteBudget = DEFAULT_BYTE_BUDGET;
+    private DecodeOptions decodeOptions;
+    private int firstVisible = -1;
+    private int lastVisible = -1;
+    private Direction direction = Direction.FORWARD;
+    private long completedBytes;
+    private long completedCount;
+    private long hitCount;
+    private long droppedCount;
+    private long wastedBytes;
+
+    /**
+     * One speculative download. Exactly one of <i>pending</i> and <i>task</i> is set
+     * while it runs.
+     */
+    private final class Prefetch implements ImageDownloader.OnImageLoaderListener {
+        final int position;
+        PendingDownload pending;
+        DownloadScheduler.Task task;
+        boolean done;
+        long bytes;
+
+        Prefetch(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public void onError(ImageDownloader.ImageError error) {
+            if (prefetches.get(position) == this) {
+                prefetches.remove(position);
+            }
+        }
+
+        @Override
+        public void onProgressChange(int percent) {
+        }
+
+        @Override
+        public void onComplete(Bitmap result, String filename, int pos) {
+            completed(result.getByteCount());
+            // only the memory cache keeps it
+            ImageDownloader.releaseBitmap(result);
+        }
+
+        @Override
+        public void onComplete(String path, String filename) {
+            completed(new File(path).length());
+        }
+
+        private void completed(long size) {
+            if (prefetches.get(position) != this) return;
+            done = true;
+            bytes = size;
+            completedBytes += size;
+            completedCount++;
+            if (isVisible(position)) {
+                // scrolled into view while it was running
+                prefetches.remove(position);
+                hitCount++;
+            }
+        }
+
+        void cancel() {
+            if (pending != null) {
+                ImageDownloader.abandon(pending, this);
+            } else if (task != null) {
+                ImageDownloader.getScheduler().cancel(task);
+            }
+        }
+    }
+
+    /**
+     * @param downloader  the downloader prefetched images are requested through
+     * @param urlProvider the URLs of the list's positions
+     */
+    public Prefetcher(@NonNull ImageDownloader downloader, @NonNull UrlProvider urlProvider) {
+        this.downloader = downloader;
+        this.urlProvider = urlProvider;
+    }
+
+    public int getDistance() {
+        return distance;
+    }
+
+    /**
+     * @param distance the number of positions past the visible range to prefetch
+     */
+    public void setDistance(int distance) {
+        if (distance < 0) throw new IllegalArgumentException("distance < 0");
+        this.distance = distance;
+        update();
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * @param byteBudget the bytes that may be prefetched but not shown yet, counting
+     *                   running prefetches by the average size of completed ones
+     */
+    public void setByteBudget(long byteBudget) {
+        if (byteBudget < 0) throw new IllegalArgumentException("byteBudget < 0");
+        this.byteBudget = byteBudget;
+        update();
+    }
+
+    /**
+     * @param decodeOptions the options to decode prefetched images with, which should
+     *                      be the ones the adapter uses, or null to only fetch them into
+     *                      the disk cache
+     */
+    public void setDecodeOptions(@Nullable DecodeOptions decodeOptions) {
+        if (decodeOptions == this.decodeOptions) return;
+        cancelAll();
+        this.decodeOptions = decodeOptions;
+        update();
+    }
+
+    /**
+     * Reports the positions that are visible now, inferring the direction from the
+     * previous range.
+     */
+    public void onVisibleRangeChanged(int firstVisible, int lastVisible) {
+        Direction direction = this.direction;
+        if (this.firstVisible >= 0 && firstVisible != this.firstVisible) {
+            direction = firstVisible > this.firstVisible ? Direction.FORWARD : Direction.BACKWARD;
+        }
+        onVisibleRangeChanged(firstVisible, lastVisible, direction);
+    }
+
+    /**
+     * Reports the positions that are visible now and the direction the user scrolls in.
+     * Prefetched images that became visible leave the budget, prefetches that are no
+     * longer ahead of the visible range are dropped and new ones are started.
+     */
+    public void onVisibleRangeChanged(int firstVisible, int lastVisible, @NonNull Direction direction) {
+        if (firstVisible < 0 || lastVisible < firstVisible) {
+            throw new IllegalArgumentException("invalid range " + firstVisible + ".." + lastVisible);
+        }
+        this.firstVisible = firstVisible;
+        this.lastVisible = lastVisible;
+        this.direction = direction;
+        update();
+    }
+
+    /**
+     * Drops every prefetch that has not started yet and forgets the completed ones.
+     */
+    public void cancelAll() {
+        for (Prefetch prefetch : new ArrayList<>(prefetches.values())) {
+            discard(prefetch);
+        }
+    }
+
+    private void update() {
+        if (firstVisible < 0) return;
+        int start;
+        int end;
+        if (direction == Direction.FORWARD) {
+            start = lastVisible + 1;
+            end = Math.min(urlProvider.getCount() - 1, lastVisible + distance);
+        } else {
+            start = Math.max(0, firstVisible - distance);
+            end = firstVisible - 1;
+        }
+        for (Prefetch prefetch : new ArrayList<>(prefetches.values())) {
+            if (isVisible(prefetch.position)) {
+                if (prefetch.done) {
+                    prefetches.remove(prefetch.position);
+                    hitCount++;
+                }
+            } else if (prefetch.position < start || prefetch.position > end) {
+                discard(prefetch);
+            }
+        }
+        // nearest positions first
+        for (int i = 0; i <= end - start; i++) {
+            int position = direction == Direction.FORWARD ? start + i : end - i;
+            if (prefetches.containsKey(position)) continue;
+            if (outstandingBytes() + averageSize() > byteBudget) break;
+            String url = urlProvider.getUrl(position);
+            if (url == null) continue;
+            start(position, url);
+        }
+    }
+
+    private void start(int position, String url) {
+        Prefetch prefetch = new Prefetch(position);
+        prefetches.put(position, prefetch);
+        if (decodeOptions != null) {
+            // completes synchronously if the image is in the memory cache
+            prefetch.pending = ImageDownloader.download(url, position, false, DownloadScheduler.Priority.LOW,
+                    decodeOptions, prefetch);
+            downloader.bind(prefetch.pending, prefetch);
+        } else {
+            prefetch.task = downloader.prefetchToDiskCache(url, DownloadScheduler.Priority.LOW, prefetch);
+        }
+    }
+
+    /**
+     * Stops tracking the prefetch, dropping it from the queue if it has not started.
+     */
+    private void discard(Prefetch prefetch) {
+        prefetches.remove(prefetch.position);
+        if (prefetch.done) {
+            wastedBytes += prefetch.bytes;
+        } else {
+            droppedCount++;
+            prefetch.cancel();
+        }
+    }
+
+    private boolean isVisible(int position) {
+        return position >= firstVisible && position <= lastVisible;
+    }
+
+    private long averageSize() {
+        return completedCount == 0 ? INITIAL_SIZE_ESTIMATE : completedBytes / completedCount;
+    }
+
+    /**
+     * @return the bytes prefetched and not shown yet, with running prefetches at the average size
+     */
+    public long outstandingBytes() {
+        long bytes = 0;
+        for (Prefetch prefetch : prefetches.values()) {
+            bytes += prefetch.done ? prefetch.bytes : averageSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of prefetched images that were shown afterwards
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the number of prefetches dropped because the user scrolled elsewhere first
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the bytes of completed prefetches that left the window without being shown
+     */
+    public long getWastedBytes() {
+        return wastedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Prefetcher{range=" + firstVisible + ".." + lastVisible + " " + direction
+                + " running+done=" + prefetches.size() + " outstanding=" + outstandingBytes() / 1024
+                + "KB/" + byteBudget / 1024 + "KB hits=" + hitCount + " dropped=" + droppedCount
+                + " wasted=" + wastedBytes / 1024 + "KB}";
+    }
+}
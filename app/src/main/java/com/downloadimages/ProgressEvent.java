@@ -0,0 +1,80 @@
+package com.downloadimages;
+
+/**
+ * Progress of a single transfer, delivered to {@link ImageDownloader.OnProgressListener}s.
+ * Events are coalesced before they are posted to the main thread, see
+ * {@link ProgressThrottle}, so consecutive events may be several chunks apart.
+ */
+public final class ProgressEvent {
+
+    private final long bytesRead;
+    private final long totalBytes;
+    private final long instantBytesPerSecond;
+    private final long averageBytesPerSecond;
+    private final long etaMillis;
+
+    ProgressEvent(long bytesRead, long totalBytes, long instantBytesPerSecond, long averageBytesPerSecond,
+                  long etaMillis) {
+        this.bytesRead = bytesRead;
+        this.totalBytes = totalBytes;
+        this.instantBytesPerSecond = instantBytesPerSecond;
+        this.averageBytesPerSecond = averageBytesPerSecond;
+        this.etaMillis = etaMillis;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the length of the body, or -1 if the server did not announce it
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return true if the length of the body is unknown, so only bytes and rates
+     * can be shown, not a percentage or ETA
+     */
+    public boolean isIndeterminate() {
+        return totalBytes <= 0;
+    }
+
+    /**
+     * @return the share of the body read, or -1 if {@link #isIndeterminate()}
+     */
+    public int getPercent() {
+        return isIndeterminate() ? -1 : (int) (bytesRead * 100 / totalBytes);
+    }
+
+    /**
+     * @return the rate since the previous event
+     */
+    public long getInstantBytesPerSecond() {
+        return instantBytesPerSecond;
+    }
+
+    /**
+     * @return the rate since the body started
+     */
+    public long getAverageBytesPerSecond() {
+        return averageBytesPerSecond;
+    }
+
+    /**
+     * @return the estimated time until the body is read completely, or -1 if
+     * {@link #isIndeterminate()} or no rate is known yet
+     */
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ProgressEvent{" + bytesRead + "/" + totalBytes + " bytes"
+                + ", instant=" + instantBytesPerSecond + "B/s"
+                + ", average=" + averageBytesPerSecond + "B/s"
+                + ", eta=" + etaMillis + "ms}";
+    }
+}
@@ -0,0 +1,77 @@
+package com.downloadimages;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Turns the per-chunk byte counts of one transfer into a few {@link ProgressEvent}s.
+ * An event is only emitted once {@link #MIN_INTERVAL_MILLIS} have passed since the
+ * previous one and, if the length is known, the percentage moved by at least
+ * {@link #MIN_PERCENT_DELTA}. The event for the last byte is always emitted. This
+ * bounds a transfer to about ten events per second and a hundred in total, no matter
+ * how small its chunks are. Not thread safe, meant to be used by the transferring thread.
+ */
+final class ProgressThrottle {
+
+    static final long MIN_INTERVAL_MILLIS = 100;
+    static final int MIN_PERCENT_DELTA = 1;
+    /**
+     * Weight of the latest rate in the rate the ETA is based on
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private final long startNanos;
+    private final long minIntervalNanos;
+    private final int minPercentDelta;
+    private long lastNanos;
+    private long lastBytes;
+    private int lastPercent = -1;
+    private double smoothedRate = -1;
+    private boolean completeEmitted;
+
+    ProgressThrottle(long startNanos) {
+        this(startNanos, MIN_INTERVAL_MILLIS, MIN_PERCENT_DELTA);
+    }
+
+    ProgressThrottle(long startNanos, long minIntervalMillis, int minPercentDelta) {
+        this.startNanos = startNanos;
+        this.minIntervalNanos = minIntervalMillis * 1000000;
+        this.minPercentDelta = minPercentDelta;
+        this.lastNanos = startNanos;
+    }
+
+    /**
+     * @param totalBytes the length of the body, or a value &lt;= 0 if unknown
+     * @return the event to publish, or null if this update is coalesced into a later one
+     */
+    @Nullable
+    ProgressEvent update(long bytesRead, long totalBytes, long nowNanos) {
+        boolean determinate = totalBytes > 0;
+        boolean complete = determinate && bytesRead >= totalBytes;
+        if (complete) {
+            if (completeEmitted) return null;
+        } else {
+            if (nowNanos - lastNanos < minIntervalNanos) return null;
+            if (determinate && (int) (bytesRead * 100 / totalBytes) - lastPercent < minPercentDelta) return null;
+        }
+
+        long average = rate(bytesRead, nowNanos - startNanos);
+        long instant = nowNanos > lastNanos ? rate(bytesRead - lastBytes, nowNanos - lastNanos) : average;
+        smoothedRate = smoothedRate < 0 ? instant : smoothedRate + SMOOTHING * (instant - smoothedRate);
+        long eta = -1;
+        if (complete) {
+            eta = 0;
+        } else if (determinate && smoothedRate > 0) {
+            eta = (long) ((totalBytes - bytesRead) * 1000 / smoothedRate);
+        }
+
+        lastNanos = nowNanos;
+        lastBytes = bytesRead;
+        lastPercent = determinate ? (int) (bytesRead * 100 / totalBytes) : -1;
+        completeEmitted = complete;
+        return new ProgressEvent(bytesRead, determinate ? totalBytes : -1, instant, average, eta);
+    }
+
+    private static long rate(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : (long) (bytes * 1e9 / nanos);
+    }
+}
@@ -0,0 +1,502 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.downloadimages.utils.BandwidthEstimator;
+import com.downloadimages.utils.FileTee;
+import com.downloadimages.utils.SharedHttpClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads a URL into a file so that an interrupted transfer continues where it
+ * stopped instead of starting over. The body is written to {@code <target>.part}
+ * and a sidecar {@code <target>.part.state} keeps the validator (strong ETag or
+ * Last-Modified) and total length. A retry sends {@code Range} together with
+ * {@code If-Range}, so a server whose copy changed answers with the full body
+ * (200) and the partial file is discarded. The part file is renamed to the target
+ * once it is complete.
+ * <p>
+ * By default a dropped connection is resumed right away, up to {@link #setMaxAttempts(int)}
+ * times. With a {@link RetryPolicy} only transient failures are retried, after its
+ * backoff, and with a {@link CircuitBreaker} no connection is opened to a host that is
+ * failing.
+ */
+public final class ResumableDownload {
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String STATE_SUFFIX = ".part.state";
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private final String url;
+    private final File target;
+    private final File partFile;
+    private final File stateFile;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+    private FileTee.ProgressListener progressListener;
+    private volatile boolean cancelled;
+    private volatile Call call;
+
+    public ResumableDownload(@NonNull String url, @NonNull File target) {
+        this.url = url;
+        this.target = target;
+        this.partFile = new File(target.getPath() + PART_SUFFIX);
+        this.stateFile = new File(target.getPath() + STATE_SUFFIX);
+    }
+
+    /**
+     * @param maxAttempts how many connections a single {@link #run()} may open
+     *                    before giving up, resuming after each dropped one
+     */
+    public ResumableDownload setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts < 1");
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param retryPolicy decides how many connections are opened and how long to wait
+     *                    between them, replacing {@link #setMaxAttempts(int)}. Failures
+     *                    that are not transient are not retried. Null to resume at once.
+     */
+    public ResumableDownload setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * @param circuitBreaker consulted before every connection and told about its
+     *                       outcome, or null to always connect
+     */
+    public ResumableDownload setCircuitBreaker(@Nullable CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * @param listener notified with the number of bytes of the target written so
+     *                 far, including bytes kept from earlier attempts
+     */
+    public ResumableDownload setProgressListener(@Nullable FileTee.ProgressListener listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    /**
+     * Stops the download from another thread. A connection in progress is closed, so
+     * a read blocked on it ends right away and {@link #run()} throws. The partial
+     * file is kept for a later download to resume.
+     */
+    public void cancel() {
+        cancelled = true;
+        Call current = call;
+        if (current != null) {
+            current.cancel();
+        }
+        synchronized (this) {
+            // ends a wait before the next attempt
+            notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * A response whose status does not let the download continue.
+     */
+    static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+        final String retryAfter;
+
+        HttpStatusException(int code, @Nullable String retryAfter) {
+            super("Server replied HTTP code: " + code);
+            this.code = code;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /**
+     * Outcome of a completed download.
+     */
+    public static final class Result {
+        private final long totalBytes;
+        private final long resumedFrom;
+        private final int attempts;
+
+        Result(long totalBytes, long resumedFrom, int attempts) {
+            this.totalBytes = totalBytes;
+            this.resumedFrom = resumedFrom;
+            this.attempts = attempts;
+        }
+
+        /**
+         * @return the size of the downloaded file
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return the number of bytes that were already on disk when the download
+         * started and did not have to be transferred again
+         */
+        public long getResumedFrom() {
+            return resumedFrom;
+        }
+
+        /**
+         * @return the number of connections that were needed
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    /**
+     * Downloads the file, resuming a previous partial download if there is one.
+     * This is a blocking operation.
+     *
+     * @throws IOException if the download could not be completed within the allowed
+     *                     number of attempts. The partial file is kept so a later call
+     *                     can resume it.
+     */
+    public Result run() throws IOException {
+        long resumedFrom = -1;
+        IOException lastError = null;
+        RetryPolicy policy = retryPolicy;
+        CircuitBreaker breaker = circuitBreaker;
+        String host = hostOf(url);
+        int attempts = policy != null ? policy.getMaxAttempts() : maxAttempts;
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            if (cancelled) {
+                throw new IOException("Canceled");
+            }
+            if (breaker != null && !breaker.allowRequest(host, System.nanoTime())) {
+                throw new IOException(host + " is unavailable");
+            }
+            State state = State.readFrom(stateFile);
+            long offset = partFile.length();
+            if (offset > 0 && (state == null || !url.equals(state.url))) {
+                discardPartial();
+                offset = 0;
+                state = null;
+            }
+            if (resumedFrom < 0) {
+                resumedFrom = offset;
+            }
+            String retryAfter = null;
+            try {
+                if (transfer(offset, state)) {
+                    if (breaker != null) {
+                        breaker.onSuccess(host);
+                    }
+                    return new Result(target.length(), resumedFrom, attempt);
+                }
+            } catch (HttpStatusException e) {
+                lastError = e;
+                if (!RetryPolicy.isTransient(e.code)) {
+                    if (breaker != null) {
+                        // the host is up, the request is wrong
+                        breaker.onSuccess(host);
+                    }
+                    if (policy != null) throw e;
+                } else if (breaker != null) {
+                    breaker.onFailure(host, System.nanoTime());
+                }
+                retryAfter = e.retryAfter;
+            } catch (IOException e) {
+                lastError = e;
+                if (cancelled) throw e;
+                if (breaker != null && RetryPolicy.isTransient(e)) {
+                    breaker.onFailure(host, System.nanoTime());
+                }
+                if (policy != null && !RetryPolicy.isTransient(e)) throw e;
+            }
+            if (policy != null) {
+                long delay = policy.retryDelayMillis(attempt, retryAfter, System.currentTimeMillis());
+                if (delay < 0) break;
+                awaitRetry(delay);
+            }
+        }
+        throw lastError != null ? lastError : new IOException("download did not complete");
+    }
+
+    /**
+     * Waits before the next attempt, returning early if the download is cancelled.
+     */
+    private synchronized void awaitRetry(long delayMillis) throws InterruptedIOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long remaining;
+        while (!cancelled && (remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting to retry");
+            }
+        }
+    }
+
+    /**
+     * Performs one connection.
+     *
+     * @return true if the target is complete
+     */
+    private boolean transfer(long offset, @Nullable State state) throws IOException {
+        // byte ranges refer to the encoded body, so keep it unencoded
+        Request.Builder request = new Request.Builder().url(url).header("Accept-Encoding", "identity");
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+            request.header("If-Range", state.validator);
+        }
+        call = SharedHttpClient.get().newCall(request.build());
+        if (cancelled) {
+            // cancel() ran before the call was published
+            call.cancel();
+        }
+        Response response = call.execute();
+        try {
+            int responseCode = response.code();
+            long totalLength;
+            boolean append;
+            if (offset > 0 && responseCode == HTTP_PARTIAL_CONTENT) {
+                long[] range = parseContentRange(response.header("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    // not the range we asked for, start over on the next attempt
+                    discardPartial();
+                    throw new IOException("unexpected Content-Range " + response.header("Content-Range"));
+                }
+                totalLength = range[1];
+                append = true;
+            } else if (responseCode == HTTP_OK) {
+                // no range support, or the file changed since the partial download
+                totalLength = response.body().contentLength();
+                append = false;
+            } else if (offset > 0 && responseCode == HTTP_RANGE_NOT_SATISFIABLE
+                    && state.totalLength == offset) {
+                // everything was downloaded, only the rename is missing
+                complete();
+                return true;
+            } else {
+                if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                    discardPartial();
+                }
+                throw new HttpStatusException(responseCode, response.header("Retry-After"));
+            }
+
+            String validator = validatorOf(response);
+            if (validator != null) {
+                new State(url, validator, totalLength).writeTo(stateFile);
+            } else if (stateFile.exists()) {
+                // without a validator a later resume could mix two versions of the file
+                stateFile.delete();
+            }
+            if (!append) {
+                new FileOutputStream(partFile).close();
+            }
+
+            final long start = append ? offset : 0;
+            long transferStart = System.nanoTime();
+            long appended = FileTee.append(response.body().byteStream(), partFile, progressListener == null ? null
+                    : new FileTee.ProgressListener() {
+                @Override
+                public void onProgress(long bytesWritten) {
+                    progressListener.onProgress(start + bytesWritten);
+                }
+            });
+            BandwidthEstimator.getInstance().addSample(appended, System.nanoTime() - transferStart);
+            if (totalLength > 0 && partFile.length() != totalLength) {
+                throw new IOException("expected " + totalLength + " bytes but have " + partFile.length());
+            }
+            complete();
+            return true;
+        } finally {
+            response.close();
+        }
+    }
+
+    private void complete() throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("could not replace " + target);
+        }
+        if (!partFile.renameTo(target)) {
+            throw new IOException("could not rename " + partFile);
+        }
+        stateFile.delete();
+    }
+
+    private void discardPartial() {
+        partFile.delete();
+        stateFile.delete();
+    }
+
+    /**
+     * @return the host the circuit breaker tracks the URL under
+     */
+    @NonNull
+    static String hostOf(@NonNull String url) {
+        HttpUrl parsed = HttpUrl.parse(url);
+        return parsed != null ? parsed.host() : url;
+    }
+
+    /**
+     * Asks for the headers of the unencoded file, retrying transient failures.
+     *
+     * @param retryPolicy    how often to try and how long to wait in between, or null to try once
+     * @param circuitBreaker consulted before every request and told about its outcome, or null
+     * @return the closed response, whose status is not transient
+     * @throws HttpStatusException if the server kept answering with a transient status
+     */
+    @NonNull
+    static Response head(@NonNull String url, @Nullable RetryPolicy retryPolicy,
+                         @Nullable CircuitBreaker circuitBreaker) throws IOException {
+        String host = hostOf(url);
+        int attempts = retryPolicy != null ? retryPolicy.getMaxAttempts() : 1;
+        for (int attempt = 1; ; attempt++) {
+            if (circuitBreaker != null && !circuitBreaker.allowRequest(host, System.nanoTime())) {
+                throw new IOException(host + " is unavailable");
+            }
+            IOException failure;
+            String retryAfter = null;
+            try {
+                Response response = SharedHttpClient.get().newCall(new Request.Builder().url(url).head()
+                        .header("Accept-Encoding", "identity")
+                        .build()).execute();
+                response.close();
+                if (!RetryPolicy.isTransient(response.code())) {
+                    if (circuitBreaker != null) {
+                        circuitBreaker.onSuccess(host);
+                    }
+                    return response;
+                }
+                retryAfter = response.header("Retry-After");
+                failure = new HttpStatusException(response.code(), retryAfter);
+            } catch (IOException e) {
+                if (!RetryPolicy.isTransient(e)) throw e;
+                failure = e;
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onFailure(host, System.nanoTime());
+            }
+            if (attempt >= attempts) throw failure;
+            long delay = retryPolicy.retryDelayMillis(attempt, retryAfter, System.currentTimeMillis());
+            if (delay < 0) throw failure;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting to retry");
+            }
+        }
+    }
+
+    /**
+     * @return the strong ETag of the response, or its Last-Modified date, or null
+     * if it has neither. Weak ETags are not allowed in If-Range.
+     */
+    @Nullable
+    static String validatorOf(Response response) {
+        String etag = response.header("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.header("Last-Modified");
+    }
+
+    /**
+     * Parses {@code bytes <first>-<last>/<total>}.
+     *
+     * @return the first byte position and the total length (-1 if unknown), or null
+     */
+    @Nullable
+    static long[] parseContentRange(@Nullable String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return null;
+        try {
+            String spec = contentRange.substring("bytes ".length()).trim();
+            int dash = spec.indexOf('-');
+            int slash = spec.indexOf('/');
+            if (dash < 0 || slash < dash) return null;
+            long first = Long.parseLong(spec.substring(0, dash));
+            String total = spec.substring(slash + 1);
+            return new long[]{first, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Content of the sidecar file.
+     */
+    private static final class State {
+        private static final String KEY_URL = "url";
+        private static final String KEY_VALIDATOR = "validator";
+        private static final String KEY_TOTAL_LENGTH = "totalLength";
+
+        final String url;
+        final String validator;
+        final long totalLength;
+
+        State(String url, String validator, long totalLength) {
+            this.url = url;
+            this.validator = validator;
+            this.totalLength = totalLength;
+        }
+
+        void writeTo(File file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(KEY_URL, url);
+            properties.setProperty(KEY_VALIDATOR, validator);
+            properties.setProperty(KEY_TOTAL_LENGTH, String.valueOf(totalLength));
+            OutputStream out = new FileOutputStream(file);
+            try {
+                properties.store(out, null);
+            } finally {
+                out.close();
+            }
+        }
+
+        @Nullable
+        static State readFrom(File file) {
+            if (!file.exists()) return null;
+            Properties properties = new Properties();
+            try {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+                String url = properties.getProperty(KEY_URL);
+                String validator = properties.getProperty(KEY_VALIDATOR);
+                if (url == null || validator == null) return null;
+                return new State(url, validator,
+                        Long.parseLong(properties.getProperty(KEY_TOTAL_LENGTH, "-1")));
+            } catch (IOException | NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.downloadimages;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * Decides whether a failed request is worth repeating and how long to wait first.
+ * <p>
+ * Timeouts, dropped connections, 408, 429 and 5xx responses other than 501 are
+ * transient; anything else is returned to the caller right away. Retries back off
+ * exponentially with full jitter, i.e. a random delay between 0 and
+ * {@code baseDelay * 2^(attempt - 1)}, capped at the maximum delay, so clients that
+ * failed together do not retry together. A {@code Retry-After} header is honored up
+ * to {@link #getMaxRetryAfterMillis()}; a server asking for a longer pause is not
+ * retried at all.
+ */
+public final class RetryPolicy {
+
+    /**
+     * Three attempts, backing off from 500 ms up to 8 s, honoring a Retry-After of up to 30 s
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 8000, 30000);
+    /**
+     * A single attempt
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+    private static final Random random = new Random();
+
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final long maxRetryAfterMillis;
+
+    /**
+     * @param maxAttempts         the number of attempts including the first one
+     * @param baseDelayMillis     the upper bound of the delay before the first retry
+     * @param maxDelayMillis      the upper bound of any backoff delay
+     * @param maxRetryAfterMillis the longest Retry-After that is waited for
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long maxRetryAfterMillis) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis || maxRetryAfterMillis < 0) {
+            throw new IllegalArgumentException("invalid retry policy");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxRetryAfterMillis = maxRetryAfterMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelayMillis() {
+        return baseDelayMillis;
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    public long getMaxRetryAfterMillis() {
+        return maxRetryAfterMillis;
+    }
+
+    /**
+     * @param attempt the number of attempts made so far, starting at 1
+     * @return the delay before the next attempt
+     */
+    public long backoffMillis(int attempt) {
+        return backoffMillis(attempt, random.nextDouble());
+    }
+
+    /**
+     * @param fraction a random value between 0 (inclusive) and 1 (exclusive)
+     */
+    long backoffMillis(int attempt, double fraction) {
+        long ceiling = baseDelayMillis;
+        for (int i = 1; i < attempt && ceiling < maxDelayMillis; i++) {
+            ceiling *= 2;
+        }
+        return (long) (Math.min(ceiling, maxDelayMillis) * fraction);
+    }
+
+    /**
+     * @param attempt    the number of attempts made so far, starting at 1
+     * @param retryAfter the Retry-After header of the failed response, if any
+     * @return the delay before the next attempt, or -1 if the request must not be
+     * repeated because no attempts are left or the server asked for a longer pause
+     */
+    public long retryDelayMillis(int attempt, @Nullable String retryAfter, long nowMillis) {
+        if (attempt >= maxAttempts) return -1;
+        long requested = retryAfterMillis(retryAfter, nowMillis);
+        if (requested < 0) return backoffMillis(attempt);
+        if (requested > maxRetryAfterMillis) return -1;
+        // spreads the clients that were told the same time
+        return requested + (long) (baseDelayMillis * random.nextDouble());
+    }
+
+    /**
+     * @return true if a response with this status may succeed when repeated
+     */
+    public static boolean isTransient(int httpCode) {
+        return httpCode == 408 || httpCode == 429 || (httpCode >= 500 && httpCode <= 599 && httpCode != 501);
+    }
+
+    /**
+     * @return true if a request that failed with this error may succeed when repeated.
+     * Certificate errors are permanent, other I/O errors such as timeouts, refused or
+     * reset connections and truncated bodies are transient.
+     */
+    public static boolean isTransient(@Nullable Throwable error) {
+        if (error instanceof SocketTimeoutException) return true;
+        if (error instanceof SSLHandshakeException || error instanceof SSLPeerUnverifiedException) return false;
+        return error instanceof IOException;
+    }
+
+    /**
+     * Parses a Retry-After header, given either in seconds or as an HTTP date.
+     *
+     * @return the requested delay, or -1 if there is none or it can not be parsed
+     */
+    static long retryAfterMillis(@Nullable String retryAfter, long nowMillis) {
+        if (retryAfter == null) return -1;
+        String value = retryAfter.trim();
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // not a number, try a date
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - nowMillis);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{attempts=" + maxAttempts + " backoff=" + baseDelayMillis + ".." + maxDelayMillis
+                + "ms retryAfter<=" + maxRetryAfterMillis + "ms}";
+    }
+}
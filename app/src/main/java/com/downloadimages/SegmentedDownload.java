@@ -0,0 +1,422 @@
+package com.downloadimages;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.downloadimages.utils.BandwidthEstimator;
+import com.downloadimages.utils.SharedHttpClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads a large file over several connections at once. The file is probed
+ * with a HEAD request for its length, range support and validator, then split
+ * into byte ranges that are fetched concurrently and written at their offset
+ * into a preallocated file with positional {@link FileChannel} writes. Servers
+ * without range support, and files too small to be worth splitting, are fetched
+ * with a single {@link ResumableDownload} instead.
+ * <p>
+ * With a {@link RetryPolicy} the probe and every segment retry transient failures,
+ * a segment continuing from the last byte it wrote, and with a {@link CircuitBreaker}
+ * no connection is opened to a host that is failing.
+ */
+public final class SegmentedDownload {
+
+    public static final int DEFAULT_SEGMENTS = 4;
+    /**
+     * Files are only split if every segment gets at least this many bytes
+     */
+    public static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    /**
+     * Segments of all downloads are fetched on at most this many threads, the others
+     * wait for one of them
+     */
+    public static final int MAX_SEGMENT_THREADS = 8;
+
+    private static final String TEMP_SUFFIX = ".seg";
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final ThreadPoolExecutor segmentExecutor = new ThreadPoolExecutor(MAX_SEGMENT_THREADS,
+            MAX_SEGMENT_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new SegmentThreadFactory());
+
+    static {
+        segmentExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final String url;
+    private final File target;
+    private final int segments;
+    private RetryPolicy retryPolicy;
+    private CircuitBreaker circuitBreaker;
+
+    public SegmentedDownload(@NonNull String url, @NonNull File target) {
+        this(url, target, DEFAULT_SEGMENTS);
+    }
+
+    public SegmentedDownload(@NonNull String url, @NonNull File target, int segments) {
+        if (segments < 1) throw new IllegalArgumentException("segments < 1");
+        this.url = url;
+        this.target = target;
+        this.segments = segments;
+    }
+
+    /**
+     * @param retryPolicy decides how often the probe, each segment and the single stream
+     *                    fallback are tried and how long to wait in between. Null to
+     *                    give up on the first failure.
+     */
+    public SegmentedDownload setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * @param circuitBreaker consulted before every connection and told about its
+     *                       outcome, or null to always connect
+     */
+    public SegmentedDownload setCircuitBreaker(@Nullable CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Outcome of a completed download.
+     */
+    public static final class Result {
+        private final long totalBytes;
+        private final int segmentCount;
+        private final long elapsedMillis;
+
+        Result(long totalBytes, int segmentCount, long elapsedMillis) {
+            this.totalBytes = totalBytes;
+            this.segmentCount = segmentCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * @return the number of connections the file was fetched over, 1 if it
+         * fell back to a single stream
+         */
+        public int getSegmentCount() {
+            return segmentCount;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * @return the aggregate throughput over all segments
+         */
+        public long getBytesPerSecond() {
+            return elapsedMillis <= 0 ? totalBytes * 1000 : totalBytes * 1000 / elapsedMillis;
+        }
+    }
+
+    /**
+     * Downloads the file. This is a blocking operation.
+     */
+    public Result run() throws IOException {
+        return run(null);
+    }
+
+    /**
+     * Downloads the file. This is a blocking operation.
+     *
+     * @param head the response to a HEAD request for the URL the caller already sent,
+     *             e.g. to name the target, so the file is not probed again. Null to
+     *             probe it here.
+     */
+    public Result run(@Nullable Response head) throws IOException {
+        long start = System.nanoTime();
+        Probe probe = probe(head != null ? head : ResumableDownload.head(url, retryPolicy, circuitBreaker));
+        int segmentCount = probe == null ? 1
+                : (int) Math.min(segments, probe.contentLength / MIN_SEGMENT_SIZE);
+        if (segmentCount <= 1) {
+            ResumableDownload.Result result = new ResumableDownload(url, target)
+                    .setRetryPolicy(retryPolicy)
+                    .setCircuitBreaker(circuitBreaker)
+                    .run();
+            return new Result(result.getTotalBytes(), 1, millisSince(start));
+        }
+        downloadSegments(probe, segmentCount);
+        return new Result(probe.contentLength, segmentCount, millisSince(start));
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the probed file properties, or null if the file can't be fetched in ranges
+     */
+    @Nullable
+    private static Probe probe(Response head) {
+        if (head.code() != HTTP_OK) return null;
+        String contentLength = head.header("Content-Length");
+        if (contentLength == null || !"bytes".equals(head.header("Accept-Ranges"))) {
+            return null;
+        }
+        try {
+            return new Probe(Long.parseLong(contentLength), ResumableDownload.validatorOf(head));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void downloadSegments(Probe probe, int segmentCount) throws IOException {
+        File tempFile = new File(target.getPath() + TEMP_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        Calls calls = new Calls();
+        boolean success = false;
+        try {
+            file.setLength(probe.contentLength);
+            FileChannel channel = file.getChannel();
+            ExecutorCompletionService<Long> completionService = new ExecutorCompletionService<>(segmentExecutor);
+            List<Future<Long>> futures = new ArrayList<>();
+            long segmentSize = probe.contentLength / segmentCount;
+            long transferStart = System.nanoTime();
+            for (int i = 0; i < segmentCount; i++) {
+                long first = i * segmentSize;
+                long last = i == segmentCount - 1 ? probe.contentLength - 1 : first + segmentSize - 1;
+                futures.add(completionService.submit(new Segment(probe, first, last, channel, calls)));
+            }
+            try {
+                for (int i = 0; i < segmentCount; i++) {
+                    completionService.take().get();
+                }
+                // the segments share the link, so only their aggregate rate says something about it
+                BandwidthEstimator.getInstance().addSample(probe.contentLength, System.nanoTime() - transferStart);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", e);
+            } finally {
+                // no interrupts: they close the response channel under a reading segment,
+                // whose failure then escapes here instead of the segment's IOException
+                for (Future<Long> future : futures) {
+                    future.cancel(false);
+                }
+                // unblocks segments that are still reading or waiting to retry
+                calls.cancel();
+            }
+            success = true;
+        } finally {
+            file.close();
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+        if (target.exists() && !target.delete()) {
+            throw new IOException("could not replace " + target);
+        }
+        if (!tempFile.renameTo(target)) {
+            throw new IOException("could not rename " + tempFile);
+        }
+    }
+
+    private static final class Probe {
+        final long contentLength;
+        final String validator;
+
+        Probe(long contentLength, String validator) {
+            this.contentLength = contentLength;
+            this.validator = validator;
+        }
+    }
+
+    /**
+     * The calls of one download's segments. Once cancelled, the calls are closed and
+     * segments that did not connect yet never do.
+     */
+    private static final class Calls {
+        private final List<Call> calls = new ArrayList<>();
+        private boolean cancelled;
+
+        synchronized void add(Call call) throws IOException {
+            if (cancelled) {
+                throw new IOException("Canceled");
+            }
+            calls.add(call);
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            for (Call call : calls) {
+                call.cancel();
+            }
+            // ends a wait before the next attempt
+            notifyAll();
+        }
+
+        /**
+         * Waits before the next attempt, returning early once cancelled.
+         */
+        synchronized void awaitRetry(long delayMillis) throws InterruptedIOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            long remaining;
+            while (!cancelled && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the inclusive byte range [first, last] and writes it at the same
+     * offset of the target channel. A retry asks for the rest of the range only.
+     */
+    private final class Segment implements Callable<Long> {
+        private final Probe probe;
+        private final long first;
+        private final long last;
+        private final FileChannel channel;
+        private final Calls calls;
+        private long position;
+
+        Segment(Probe probe, long first, long last, FileChannel channel, Calls calls) {
+            this.probe = probe;
+            this.first = first;
+            this.last = last;
+            this.channel = channel;
+            this.calls = calls;
+            this.position = first;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            RetryPolicy policy = retryPolicy;
+            CircuitBreaker breaker = circuitBreaker;
+            String host = ResumableDownload.hostOf(url);
+            int attempts = policy != null ? policy.getMaxAttempts() : 1;
+            for (int attempt = 1; ; attempt++) {
+                if (breaker != null && !breaker.allowRequest(host, System.nanoTime())) {
+                    throw new IOException(host + " is unavailable");
+                }
+                IOException failure;
+                String retryAfter = null;
+                try {
+                    transfer();
+                    if (breaker != null) {
+                        breaker.onSuccess(host);
+                    }
+                    return last + 1 - first;
+                } catch (ResumableDownload.HttpStatusException e) {
+                    if (!RetryPolicy.isTransient(e.code)) {
+                        if (breaker != null) {
+                            // the host is up, the file changed or has no ranges
+                            breaker.onSuccess(host);
+                        }
+                        throw e;
+                    }
+                    failure = e;
+                    retryAfter = e.retryAfter;
+                } catch (IOException e) {
+                    // a failure of another segment closed the connection or the file
+                    if (calls.isCancelled() || !RetryPolicy.isTransient(e)) throw e;
+                    failure = e;
+                }
+                if (breaker != null) {
+                    breaker.onFailure(host, System.nanoTime());
+                }
+                if (attempt >= attempts) throw failure;
+                long delay = policy.retryDelayMillis(attempt, retryAfter, System.currentTimeMillis());
+                if (delay < 0) throw failure;
+                calls.awaitRetry(delay);
+            }
+        }
+
+        /**
+         * Performs one connection for the rest of the range.
+         */
+        private void transfer() throws IOException {
+            Request.Builder request = new Request.Builder().url(url)
+                    .header("Accept-Encoding", "identity")
+                    .header("Range", "bytes=" + position + "-" + last);
+            if (probe.validator != null) {
+                // a changed file comes back as 200 and fails the segment
+                request.header("If-Range", probe.validator);
+            }
+            Call call = SharedHttpClient.get().newCall(request.build());
+            calls.add(call);
+            Response response = call.execute();
+            try {
+                if (response.code() != HTTP_PARTIAL_CONTENT) {
+                    throw new ResumableDownload.HttpStatusException(response.code(),
+                            response.header("Retry-After"));
+                }
+                long[] range = ResumableDownload.parseContentRange(response.header("Content-Range"));
+                if (range == null || range[0] != position) {
+                    throw new IOException("unexpected Content-Range " + response.header("Content-Range"));
+                }
+                ReadableByteChannel source = Channels.newChannel(response.body().byteStream());
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (position <= last) {
+                    // never write past the segment, even if the server sends more
+                    buffer.limit((int) Math.min(BUFFER_SIZE, last + 1 - position));
+                    if (source.read(buffer) == -1) break;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    buffer.clear();
+                }
+                if (position != last + 1) {
+                    throw new IOException("segment " + first + "-" + last + " ended at " + position);
+                }
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    private static final class SegmentThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "SegmentedDownload #" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
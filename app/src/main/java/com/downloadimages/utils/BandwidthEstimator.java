@@ -0,0 +1,164 @@
+package com.downloadimages.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Process-wide estimate of the download bandwidth. A sample is the bytes read and
+ * the time it took to read them. Transfers that run at the same time share the
+ * link, so they are reported together: the image downloads through the windows of
+ * {@link com.downloadimages.ConcurrencyController}, a segmented download with the
+ * total of its segments. A single stream reports its body, timed from the response
+ * headers so connection setup and server think time are not counted.
+ * The samples are folded into an exponentially weighted moving average and the
+ * average is mapped to a {@link Quality} class. Subscribers are told when the
+ * class changes, but only once it held for {@link #SAMPLES_TO_QUALITY_CHANGE}
+ * consecutive samples, so a single slow or fast transfer does not flip it.
+ */
+public final class BandwidthEstimator {
+
+    /**
+     * Connection quality classes, bounded by {@link #POOR_BANDWIDTH},
+     * {@link #AVERAGE_BANDWIDTH} and {@link #GOOD_BANDWIDTH}.
+     */
+    public enum Quality {
+        UNKNOWN, POOR, MODERATE, GOOD, EXCELLENT
+    }
+
+    /**
+     * Notified on the thread that added the sample which changed the quality class.
+     */
+    public interface Listener {
+        void onQualityChanged(@NonNull Quality quality, double kbps);
+    }
+
+    // bandwidth in kbps
+    public static final int POOR_BANDWIDTH = 150;
+    public static final int AVERAGE_BANDWIDTH = 550;
+    public static final int GOOD_BANDWIDTH = 2000;
+
+    /**
+     * Bodies smaller than this are dominated by round trips rather than bandwidth and are ignored
+     */
+    public static final long MIN_SAMPLE_BYTES = 10 * 1024;
+    public static final int SAMPLES_TO_QUALITY_CHANGE = 3;
+    /**
+     * Weight of a new sample in the average
+     */
+    private static final double SMOOTHING = 0.25;
+
+    private static final BandwidthEstimator instance = new BandwidthEstimator();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private double averageKbps = -1;
+    private int sampleCount;
+    private Quality quality = Quality.UNKNOWN;
+    private Quality candidate = Quality.UNKNOWN;
+    private int candidateCount;
+
+    BandwidthEstimator() {
+    }
+
+    public static BandwidthEstimator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds the measurement of one transfer, or of several that ran at once.
+     *
+     * @param bytes        the number of body bytes read
+     * @param elapsedNanos the wall-clock time it took to read them
+     */
+    public void addSample(long bytes, long elapsedNanos) {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedNanos <= 0) return;
+        // bits per millisecond equals kilobits per second
+        double kbps = bytes * 8 * 1e6 / elapsedNanos;
+        Quality changed = null;
+        double average;
+        synchronized (this) {
+            averageKbps = averageKbps < 0 ? kbps : averageKbps + SMOOTHING * (kbps - averageKbps);
+            average = averageKbps;
+            sampleCount++;
+            Quality current = classify(averageKbps);
+            if (current == quality) {
+                candidateCount = 0;
+            } else {
+                if (current != candidate) {
+                    candidate = current;
+                    candidateCount = 0;
+                }
+                candidateCount++;
+                if (quality == Quality.UNKNOWN || candidateCount >= SAMPLES_TO_QUALITY_CHANGE) {
+                    quality = current;
+                    candidateCount = 0;
+                    changed = current;
+                }
+            }
+        }
+        if (changed != null) {
+            for (Listener listener : listeners) {
+                listener.onQualityChanged(changed, average);
+            }
+        }
+    }
+
+    /**
+     * @return the average bandwidth in kilobits per second, or -1 before the first sample
+     */
+    public synchronized double getKbps() {
+        return averageKbps;
+    }
+
+    /**
+     * @return the average bandwidth in bytes per second, or -1 before the first sample
+     */
+    public synchronized long getBytesPerSecond() {
+        return averageKbps < 0 ? -1 : (long) (averageKbps * 1000 / 8);
+    }
+
+    @NonNull
+    public synchronized Quality getQuality() {
+        return quality;
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Registers a listener for quality class changes.
+     *
+     * @return the current quality class
+     */
+    @NonNull
+    public Quality register(@NonNull Listener listener) {
+        listeners.add(listener);
+        return getQuality();
+    }
+
+    public void unregister(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Forgets all samples, e.g. after the device switched networks.
+     */
+    public synchronized void reset() {
+        averageKbps = -1;
+        sampleCount = 0;
+        quality = Quality.UNKNOWN;
+        candidate = Quality.UNKNOWN;
+        candidateCount = 0;
+    }
+
+    @NonNull
+    public static Quality classify(double kbps) {
+        if (kbps < 0) return Quality.UNKNOWN;
+        if (kbps < POOR_BANDWIDTH) return Quality.POOR;
+        if (kbps < AVERAGE_BANDWIDTH) return Quality.MODERATE;
+        if (kbps < GOOD_BANDWIDTH) return Quality.GOOD;
+        return Quality.EXCELLENT;
+    }
+}
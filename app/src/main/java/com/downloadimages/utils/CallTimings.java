@@ -0,0 +1,152 @@
+package com.downloadimages.utils;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Network phases of one HTTP call. Attach an instance to a request with
+ * {@code Request.Builder.tag(CallTimings.class, timings)} and the shared client
+ * fills it in through {@link #FACTORY} while the call runs. Untagged calls are
+ * not observed. Durations are -1 for phases that did not happen, e.g. DNS and
+ * connect when a pooled connection was reused.
+ */
+public final class CallTimings {
+
+    /**
+     * Installed on the client by {@link SharedHttpClient}.
+     */
+    public static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            CallTimings timings = call.request().tag(CallTimings.class);
+            return timings == null ? EventListener.NONE : timings.new Listener();
+        }
+    };
+
+    private volatile long dnsNanos = -1;
+    private volatile long connectNanos = -1;
+    private volatile long tlsNanos = -1;
+    private volatile long ttfbNanos = -1;
+    private volatile long responseBodyBytes = -1;
+    private volatile boolean connectionReused = true;
+
+    /**
+     * @return the time to resolve the host, -1 if no lookup was needed
+     */
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    /**
+     * @return the time to open the connection including the TLS handshake, -1 if a
+     * pooled connection was used
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return the time of the TLS handshake alone, -1 for plain HTTP or a pooled connection
+     */
+    public long getTlsNanos() {
+        return tlsNanos;
+    }
+
+    /**
+     * @return the time from sending the request headers to the start of the response headers
+     */
+    public long getTtfbNanos() {
+        return ttfbNanos;
+    }
+
+    /**
+     * @return the size of the body as transferred, before any content decoding, or -1
+     * if it was not read to the end
+     */
+    public long getResponseBodyBytes() {
+        return responseBodyBytes;
+    }
+
+    public boolean isConnectionReused() {
+        return connectionReused;
+    }
+
+    private final class Listener extends EventListener {
+        private long dnsStart;
+        private long connectStart;
+        private long secureConnectStart;
+        private long requestStart;
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            dnsNanos = System.nanoTime() - dnsStart;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = System.nanoTime();
+            connectionReused = false;
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            tlsNanos = System.nanoTime() - secureConnectStart;
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            connectNanos = System.nanoTime() - connectStart;
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                                  Protocol protocol, IOException ioe) {
+            connectNanos = System.nanoTime() - connectStart;
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            ttfbNanos = System.nanoTime() - requestStart;
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            responseBodyBytes = byteCount;
+        }
+    }
+
+    @Override
+    @NonNull
+    public String toString() {
+        return "CallTimings{dns=" + dnsNanos / 1000 + "us, connect=" + connectNanos / 1000
+                + "us, tls=" + tlsNanos / 1000 + "us, ttfb=" + ttfbNanos / 1000
+                + "us, bytes=" + responseBodyBytes + (connectionReused ? ", reused" : "") + "}";
+    }
+}
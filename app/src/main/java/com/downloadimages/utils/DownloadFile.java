@@ -2,7 +2,6 @@ package com.downloadimages.utils;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -22,12 +21,7 @@ public class DownloadFile {
     private long startTime;
     private long endTime;
     private long fileSize;
-    private OkHttpClient client = new OkHttpClient();
-
-    // bandwidth in kbps
-    private int POOR_BANDWIDTH = 150;
-    private int AVERAGE_BANDWIDTH = 550;
-    private int GOOD_BANDWIDTH = 2000;
+    private final OkHttpClient client = SharedHttpClient.get();
 
     public void downloadFile(String url) {
         Request request = new Request.Builder().url(url).build();
@@ -49,40 +43,37 @@ public class DownloadFile {
                 }
 
                 InputStream input = response.body().byteStream();
+                // the body is only measured, time it from the first byte on
+                long transferStart = System.nanoTime();
 
                 try {
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    byte[] buffer = new byte[1024];
-
-                    while (input.read(buffer) != -1) {
-                        bos.write(buffer);
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    fileSize = 0;
+                    while ((count = input.read(buffer)) != -1) {
+                        fileSize += count;
                     }
-                    byte[] docBuffer = bos.toByteArray();
-                    fileSize = bos.size();
-
                 } finally {
                     input.close();
                 }
 
                 endTime = System.currentTimeMillis();
+                long transferNanos = System.nanoTime() - transferStart;
+                BandwidthEstimator estimator = BandwidthEstimator.getInstance();
+                estimator.addSample(fileSize, transferNanos);
 
                 // calculate how long it took by subtracting endtime from starttime
-
-                double timeTakenMills = Math.floor(endTime - startTime);  // time taken in milliseconds
+                double timeTakenMills = endTime - startTime;  // time taken in milliseconds, including the request
                 double timeTakenSecs = timeTakenMills / 1000;  // divide by 1000 to get time in seconds
-                final int kilobytePerSec = (int) Math.round(1024 / timeTakenSecs);
-
-                if (kilobytePerSec <= POOR_BANDWIDTH) {
-                    // slow connection
-                }
-
-                // get the download speed by dividing the file size by time taken to download
-                double speed = fileSize / timeTakenMills;
+                // bits per millisecond equals kilobits per second
+                final int kilobitsPerSec = transferNanos > 0 ? (int) Math.round(fileSize * 8 * 1e6 / transferNanos) : 0;
 
+                BandwidthEstimator.Quality quality = BandwidthEstimator.classify(kilobitsPerSec);
                 if (Utility.isDebug) {
                     Log.d(TAG, "Time taken in secs: " + timeTakenSecs);
-                    Log.d(TAG, "kilobyte per sec: " + kilobytePerSec);
-                    Log.d(TAG, "Download Speed: " + speed);
+                    Log.d(TAG, "kilobits per sec: " + kilobitsPerSec + " (" + quality + ")");
+                    Log.d(TAG, "Average bandwidth: " + Math.round(estimator.getKbps()) + " kbps ("
+                            + estimator.getQuality() + ")");
                     Log.d(TAG, "File size: " + fileSize);
                 }
             }
@@ -0,0 +1,170 @@
+package com.downloadimages.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streams a body straight into a file through a {@link FileChannel}, computing
+ * its SHA-256 digest and byte count on the way. The body is never held in
+ * memory as a whole.
+ */
+public final class FileTee {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private FileTee() {
+    }
+
+    /**
+     * Notified after every chunk written by {@link #copy(InputStream, File, long, ProgressListener)}.
+     * Invoked on the copying thread.
+     */
+    public interface ProgressListener {
+        void onProgress(long bytesWritten);
+    }
+
+    /**
+     * Outcome of a completed copy.
+     */
+    public static final class Result {
+        private final long byteCount;
+        private final byte[] sha256;
+        private final long writeNanos;
+
+        Result(long byteCount, byte[] sha256, long writeNanos) {
+            this.byteCount = byteCount;
+            this.sha256 = sha256;
+            this.writeNanos = writeNanos;
+        }
+
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * @return the time spent writing to the file, as opposed to waiting for the input
+         */
+        public long getWriteNanos() {
+            return writeNanos;
+        }
+
+        public byte[] getSha256() {
+            return sha256.clone();
+        }
+
+        public String getSha256Hex() {
+            return Utility.toHex(sha256);
+        }
+    }
+
+    /**
+     * Copies <i>in</i> into <i>target</i>, replacing its content. The input stream
+     * is not closed.
+     *
+     * @param expectedLength the announced length of the body, or a value &lt;= 0 if unknown.
+     *                       A body of a different length fails the copy.
+     * @param listener       optional listener for the number of bytes written so far
+     * @throws IOException if reading or writing fails or the body is truncated
+     */
+    public static Result copy(InputStream in, File target, long expectedLength,
+                              ProgressListener listener) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        ReadableByteChannel source = Channels.newChannel(in);
+        FileOutputStream outputStream = new FileOutputStream(target);
+        try {
+            FileChannel channel = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long total = 0;
+            long writeNanos = 0;
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                buffer.flip();
+                digest.update(buffer.array(), 0, buffer.limit());
+                long writeStart = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                writeNanos += System.nanoTime() - writeStart;
+                buffer.clear();
+                total += count;
+                if (listener != null) {
+                    listener.onProgress(total);
+                }
+            }
+            if (expectedLength > 0 && total != expectedLength) {
+                throw new IOException("expected " + expectedLength + " bytes but received " + total);
+            }
+            return new Result(total, digest.digest(), writeNanos);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Appends <i>in</i> to the end of <i>target</i>, creating it if needed. The input
+     * stream is not closed.
+     *
+     * @param listener optional listener for the number of bytes appended so far
+     * @return the number of bytes appended
+     */
+    public static long append(InputStream in, File target, ProgressListener listener) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(in);
+        FileOutputStream outputStream = new FileOutputStream(target, true);
+        try {
+            FileChannel channel = outputStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long total = 0;
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                total += count;
+                if (listener != null) {
+                    listener.onProgress(total);
+                }
+            }
+            return total;
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Copies a whole file with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * replacing the content of <i>target</i>.
+     */
+    public static void copyFile(File source, File target) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
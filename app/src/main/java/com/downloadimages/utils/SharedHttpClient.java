@@ -0,0 +1,105 @@
+package com.downloadimages.utils;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Holds the one {@link OkHttpClient} every download path uses. Sharing the client
+ * shares its connection pool, so consecutive images from the same host reuse a
+ * warm keep-alive or HTTP/2 connection instead of paying for DNS, TCP and TLS
+ * again, and a single {@link Dispatcher} bounds asynchronous calls per host.
+ * Failed connections are not retried by the client, callers retry with a
+ * {@link com.downloadimages.RetryPolicy} so every attempt is counted and backed off.
+ * <p>
+ * Timeouts can be changed at runtime. The client is then rebuilt on top of the
+ * same pool and dispatcher, so open connections are kept.
+ */
+public final class SharedHttpClient {
+
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    public static final long DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 30000;
+    /**
+     * Idle connections kept open, enough for a few hosts with a handful of parallel
+     * HTTP/1.1 connections each
+     */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_MINUTES = 5;
+    public static final int DEFAULT_MAX_REQUESTS = 64;
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    private static final ConnectionPool connectionPool =
+            new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_MINUTES, TimeUnit.MINUTES);
+    private static final Dispatcher dispatcher = new Dispatcher();
+    private static OkHttpClient client;
+
+    static {
+        dispatcher.setMaxRequests(DEFAULT_MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    private SharedHttpClient() {
+    }
+
+    /**
+     * @return the shared client, built with the default timeouts on first use
+     */
+    @NonNull
+    public static synchronized OkHttpClient get() {
+        if (client == null) {
+            client = new OkHttpClient.Builder()
+                    .connectionPool(connectionPool)
+                    .dispatcher(dispatcher)
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .connectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .readTimeout(DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .writeTimeout(DEFAULT_WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    // RetryPolicy decides about retries, OkHttp must not add silent ones
+                    .retryOnConnectionFailure(false)
+                    .eventListenerFactory(CallTimings.FACTORY)
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * Replaces the timeouts of the shared client. Calls that already started keep
+     * the timeouts they were created with.
+     */
+    public static synchronized void setTimeouts(long connectTimeout, long readTimeout, long writeTimeout,
+                                                @NonNull TimeUnit unit) {
+        client = get().newBuilder()
+                .connectTimeout(connectTimeout, unit)
+                .readTimeout(readTimeout, unit)
+                .writeTimeout(writeTimeout, unit)
+                .build();
+    }
+
+    /**
+     * @param maxRequestsPerHost the maximum number of asynchronous calls to one host.
+     *                           Blocking calls are limited by the caller, see
+     *                           {@code DownloadScheduler#setMaxPerHost(int)}.
+     */
+    public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    public static void setMaxRequests(int maxRequests) {
+        dispatcher.setMaxRequests(maxRequests);
+    }
+
+    /**
+     * @return the pool shared by all calls, e.g. to inspect how many connections are idle
+     */
+    @NonNull
+    public static ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+}
@@ -0,0 +1,58 @@
+package com.downloadimages;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 10000);
+        breaker.onFailure("a", 0);
+        breaker.onFailure("a", 0);
+        breaker.onSuccess("a");
+        breaker.onFailure("a", 0);
+        breaker.onFailure("a", 0);
+        assertTrue(breaker.allowRequest("a", 0));
+        breaker.onFailure("a", 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState("a"));
+        assertFalse(breaker.allowRequest("a", SECOND));
+        assertTrue("other hosts are not affected", breaker.allowRequest("b", SECOND));
+        assertEquals(1, breaker.getRejectedCount("a"));
+    }
+
+    @Test
+    public void letsOneProbeThroughAfterTheOpenPeriod() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10000);
+        breaker.onFailure("a", 0);
+        assertTrue(breaker.allowRequest("a", 10 * SECOND));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("a"));
+        assertFalse(breaker.allowRequest("a", 11 * SECOND));
+        breaker.onSuccess("a");
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("a"));
+        assertTrue(breaker.allowRequest("a", 11 * SECOND));
+    }
+
+    @Test
+    public void failedProbesDoubleTheOpenPeriod() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 10000);
+        breaker.onFailure("a", 0);
+        assertTrue(breaker.allowRequest("a", 10 * SECOND));
+        breaker.onFailure("a", 10 * SECOND);
+        assertFalse(breaker.allowRequest("a", 29 * SECOND));
+        assertTrue(breaker.allowRequest("a", 30 * SECOND));
+    }
+
+    @Test
+    public void staysOpenForARequestedPause() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.openUntil("a", 120 * SECOND);
+        assertFalse(breaker.allowRequest("a", 119 * SECOND));
+        assertTrue(breaker.allowRequest("a", 120 * SECOND));
+    }
+}
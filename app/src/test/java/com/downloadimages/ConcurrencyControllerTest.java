@@ -0,0 +1,174 @@
+package com.downloadimages;
+
+import com.downloadimages.utils.BandwidthEstimator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyControllerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MB = 1024 * 1024;
+
+    private DownloadScheduler scheduler;
+    private ConcurrencyController controller;
+    private long now;
+
+    @Before
+    public void setUp() {
+        scheduler = new DownloadScheduler();
+        controller = new ConcurrencyController(scheduler);
+    }
+
+    /**
+     * Feeds one full window of requests that all start together and finish one second
+     * later, so the window's throughput is {@code bytesPerSecond}.
+     *
+     * @param saturated whether as many transfers ran as the limit allowed
+     */
+    private void window(long ttfbMillis, long bytesPerSecond, boolean saturated) {
+        int samples = Math.max(ConcurrencyController.MIN_WINDOW_SIZE, controller.getLimit());
+        int inFlight = saturated ? controller.getLimit() : controller.getLimit() - 1;
+        long firstByte = now + TimeUnit.MILLISECONDS.toNanos(ttfbMillis);
+        for (int i = 1; i <= samples; i++) {
+            boolean ended = controller.onResponse(now, firstByte, now + SECOND,
+                    bytesPerSecond / samples, inFlight);
+            assertEquals("window of " + samples + " ended after " + i, i == samples, ended);
+        }
+        now += SECOND;
+    }
+
+    @Test
+    public void windowHoldsAtLeastLimitSamples() {
+        assertEquals(DownloadScheduler.DEFAULT_MAX_CONCURRENT, controller.getLimit());
+        window(100, MB, true);
+        assertEquals(DownloadScheduler.DEFAULT_MAX_CONCURRENT + 1, controller.getLimit());
+        // the next window is one sample longer
+        window(100, MB, true);
+
+        controller.setLimits(1, 2);
+        window(100, MB, false);
+        assertEquals("a limit that was not reached does not grow", 2, controller.getLimit());
+    }
+
+    @Test
+    public void growsWhileSaturatedAndLatencyHolds() {
+        window(100, MB, true);
+        window(120, MB, true);
+        assertEquals(8, controller.getLimit());
+        assertEquals(8, scheduler.getMaxConcurrent());
+        assertEquals(2, controller.getIncreaseCount());
+        assertEquals(120, controller.getLastWindowTtfbMillis());
+        // within the rounding of the bytes per sample
+        assertEquals(MB, controller.getLastWindowThroughput(), 8);
+    }
+
+    @Test
+    public void cutsLimitWhenLatencyBloats() {
+        window(100, MB, true);
+        assertEquals(7, controller.getLimit());
+        window(250, MB, true);
+        assertEquals(5, controller.getLimit());
+        assertEquals(5, scheduler.getMaxConcurrent());
+        assertEquals(1, controller.getDecreaseCount());
+        assertEquals(100, controller.getMinTtfbMillis());
+    }
+
+    @Test
+    public void takesBackIncreaseThatCostThroughput() {
+        window(100, MB, true);
+        assertEquals(7, controller.getLimit());
+        window(100, MB * 8 / 10, true);
+        assertEquals(6, controller.getLimit());
+        assertEquals(6, scheduler.getMaxConcurrent());
+    }
+
+    @Test
+    public void ignoresThroughputNoise() {
+        window(100, MB, true);
+        window(100, MB * 95 / 100, true);
+        assertEquals(8, controller.getLimit());
+    }
+
+    @Test
+    public void clampsLimitBetweenFloorAndCeiling() {
+        controller.setLimits(2, 4);
+        assertEquals(4, controller.getLimit());
+        assertEquals(4, scheduler.getMaxConcurrent());
+        window(100, MB, true);
+        assertEquals(4, controller.getLimit());
+
+        controller.onTimeout();
+        assertEquals(3, controller.getLimit());
+        controller.onTimeout();
+        assertEquals(2, controller.getLimit());
+        controller.onTimeout();
+        assertEquals(2, controller.getLimit());
+        window(500, MB, true);
+        assertEquals(2, controller.getLimit());
+        assertEquals(2, scheduler.getMaxConcurrent());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedLimits() {
+        controller.setLimits(4, 2);
+    }
+
+    @Test
+    public void forgetsMinTtfbAfterResetWindows() {
+        controller.setLimits(1, 4);
+        window(100, MB, true);
+        // the path got slower for good: every window looks bloated at first
+        for (int i = 1; i < ConcurrencyController.MIN_TTFB_RESET_WINDOWS; i++) {
+            window(300, MB, true);
+        }
+        assertEquals(1, controller.getLimit());
+        // the first reset still saw the fast window
+        assertEquals(100, controller.getMinTtfbMillis());
+        for (int i = 0; i < ConcurrencyController.MIN_TTFB_RESET_WINDOWS; i++) {
+            window(300, MB, true);
+        }
+        assertEquals(300, controller.getMinTtfbMillis());
+        window(300, MB, true);
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void doesNotCountIdleTimeBeforeWindow() {
+        window(100, MB, true);
+        now += 10 * SECOND;
+        window(100, MB, true);
+        assertEquals(MB, controller.getLastWindowThroughput(), 8);
+        assertEquals(8, controller.getLimit());
+    }
+
+    @Test
+    public void reportsAggregateThroughputToEstimator() {
+        BandwidthEstimator estimator = BandwidthEstimator.getInstance();
+        estimator.reset();
+        controller = new ConcurrencyController(scheduler, estimator);
+        // six transfers that each read a sixth of a megabyte in the same second
+        window(100, MB, true);
+        assertEquals(1, estimator.getSampleCount());
+        assertEquals(MB, estimator.getBytesPerSecond(), MB / 100);
+
+        controller.setEnabled(false);
+        window(100, 2 * MB, true);
+        assertEquals("disabled windows are still measured", 2, estimator.getSampleCount());
+        assertEquals(7, controller.getLimit());
+        estimator.reset();
+    }
+
+    @Test
+    public void disabledControllerLeavesSchedulerAlone() {
+        controller.setEnabled(false);
+        assertFalse(controller.onResponse(0, 1, SECOND, MB, 6));
+        controller.onTimeout();
+        assertEquals(6, controller.getLimit());
+        assertEquals(6, scheduler.getMaxConcurrent());
+    }
+}
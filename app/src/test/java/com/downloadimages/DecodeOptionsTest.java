@@ -0,0 +1,25 @@
+package com.downloadimages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DecodeOptionsTest {
+
+    @Test
+    public void fullSizeLowBitDepthIsNotOriginal() {
+        DecodeOptions lowBitDepth = new DecodeOptions(0, 0, DecodeOptions.ScaleMode.FIT, true);
+        assertTrue(DecodeOptions.ORIGINAL.isOriginal());
+        assertFalse(lowBitDepth.isOriginal());
+        assertNotEquals(DecodeOptions.ORIGINAL.toKey(), lowBitDepth.toKey());
+    }
+
+    @Test
+    public void scaleModeOnlyMattersWithTargetSize() {
+        assertTrue(new DecodeOptions(0, 0, DecodeOptions.ScaleMode.FILL, false).isOriginal());
+        assertEquals(new DecodeOptions(0, 0, DecodeOptions.ScaleMode.FILL, true).toKey(),
+                new DecodeOptions(0, 0, DecodeOptions.ScaleMode.FIT, true).toKey());
+        assertNotEquals(new DecodeOptions(100, 100, DecodeOptions.ScaleMode.FILL, false).toKey(),
+                new DecodeOptions(100, 100, DecodeOptions.ScaleMode.FIT, false).toKey());
+    }
+}
@@ -0,0 +1,180 @@
+package com.downloadimages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link DiskCache} stores identical bodies once and keeps them until
+ * the last entry pointing to them is gone, also across a restart, and while an
+ * entry for them is open.
+ */
+public class DiskCacheTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("diskcache", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * @return the committed entry, closed already
+     */
+    private static DiskCache.Entry put(DiskCache cache, String url, byte[] body) throws IOException {
+        DiskCache.Editor editor = cache.edit(url);
+        OutputStream out = editor.newOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        DiskCache.Entry entry = editor.commit(new DiskCache.Metadata(url, null, null, Long.MAX_VALUE));
+        entry.close();
+        return entry;
+    }
+
+    private static String digestOf(DiskCache cache, String url) {
+        DiskCache.Entry entry = cache.get(url);
+        entry.close();
+        return entry.getDigest();
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * seed);
+        }
+        return body;
+    }
+
+    @Test
+    public void storesDuplicateBodiesOnce() throws Exception {
+        DiskCache cache = DiskCache.open(directory, 1024 * 1024);
+        DiskCache.Entry first = put(cache, "http://a.example/1.jpg", body(1000, 7));
+        DiskCache.Entry second = put(cache, "http://b.example/1.jpg?v=2", body(1000, 7));
+        put(cache, "http://a.example/2.jpg", body(500, 11));
+
+        assertEquals(first.getDigest(), second.getDigest());
+        assertEquals(first.getFile(), second.getFile());
+        assertEquals(3, cache.entryCount());
+        assertEquals(2, cache.blobCount());
+        assertEquals(1500, cache.size());
+        assertEquals(1000, cache.deduplicatedBytes());
+
+        // the shared body stays until its last entry is removed
+        assertTrue(cache.remove("http://a.example/1.jpg"));
+        assertTrue(first.getFile().exists());
+        assertEquals(first.getDigest(), digestOf(cache, "http://b.example/1.jpg?v=2"));
+        assertTrue(cache.remove("http://b.example/1.jpg?v=2"));
+        assertFalse(first.getFile().exists());
+        assertEquals(500, cache.size());
+    }
+
+    @Test
+    public void keepsReferencesAcrossRestart() throws Exception {
+        DiskCache cache = DiskCache.open(directory, 1024 * 1024);
+        DiskCache.Entry first = put(cache, "http://a.example/1.jpg", body(1000, 7));
+        put(cache, "http://b.example/1.jpg", body(1000, 7));
+        // replacing a URL's content drops its reference to the old body
+        put(cache, "http://b.example/1.jpg", body(800, 3));
+
+        DiskCache reopened = DiskCache.open(directory, 1024 * 1024);
+        assertEquals(2, reopened.entryCount());
+        assertEquals(2, reopened.blobCount());
+        assertEquals(1800, reopened.size());
+        assertEquals(first.getDigest(), digestOf(reopened, "http://a.example/1.jpg"));
+        reopened.remove("http://a.example/1.jpg");
+        assertFalse(first.getFile().exists());
+        assertEquals(800, reopened.size());
+    }
+
+    @Test
+    public void evictsSharedBodyWithItsLastEntry() throws Exception {
+        DiskCache cache = DiskCache.open(directory, 2500);
+        DiskCache.Entry shared = put(cache, "http://a.example/1.jpg", body(1000, 7));
+        put(cache, "http://b.example/1.jpg", body(1000, 7));
+        put(cache, "http://a.example/2.jpg", body(1000, 11));
+        assertEquals(2000, cache.size());
+
+        put(cache, "http://a.example/3.jpg", body(1000, 13));
+
+        // both entries of the least recently used body had to go
+        assertNull(cache.get("http://a.example/1.jpg"));
+        assertNull(cache.get("http://b.example/1.jpg"));
+        assertFalse(shared.getFile().exists());
+        assertEquals(2000, cache.size());
+        assertEquals(2, cache.entryCount());
+    }
+
+    @Test
+    public void keepsEvictedBodyWhileEntryIsOpen() throws Exception {
+        DiskCache cache = DiskCache.open(directory, 1500);
+        put(cache, "http://a.example/1.jpg", body(1000, 7));
+        DiskCache.Entry open = cache.get("http://a.example/1.jpg");
+
+        put(cache, "http://a.example/2.jpg", body(1000, 11));
+
+        assertNull(cache.get("http://a.example/1.jpg"));
+        assertEquals(1000, cache.size());
+        assertTrue(open.getFile().exists());
+        // the same content comes back while the evicted body is still read
+        put(cache, "http://b.example/1.jpg", body(1000, 7));
+        open.close();
+        assertTrue(open.getFile().exists());
+        assertEquals(open.getDigest(), digestOf(cache, "http://b.example/1.jpg"));
+
+        cache.remove("http://b.example/1.jpg");
+        assertFalse(open.getFile().exists());
+        open.close();
+    }
+
+    @Test
+    public void rejectsBodyLargerThanCache() throws Exception {
+        DiskCache cache = DiskCache.open(directory, 1500);
+        put(cache, "http://a.example/1.jpg", body(1000, 7));
+        try {
+            put(cache, "http://a.example/1.jpg", body(2000, 11));
+            fail("the body does not fit");
+        } catch (IOException expected) {
+        }
+        assertNull(cache.get("http://a.example/1.jpg"));
+        assertEquals(0, cache.size());
+        String[] files = directory.list();
+        assertEquals(1, files.length);
+        assertEquals("journal", files[0]);
+    }
+
+    @Test
+    public void deletesOrphanedMetadataOnOpen() throws Exception {
+        DiskCache cache = DiskCache.open(directory, 1024 * 1024);
+        put(cache, "http://a.example/1.jpg", body(1000, 7));
+        // written by a commit that crashed before it reached the journal
+        File orphan = new File(directory, "0123abcd.meta");
+        assertTrue(orphan.createNewFile());
+
+        DiskCache reopened = DiskCache.open(directory, 1024 * 1024);
+
+        assertFalse(orphan.exists());
+        assertEquals(1, reopened.entryCount());
+        assertEquals(1000, reopened.get("http://a.example/1.jpg").getFile().length());
+    }
+}
@@ -0,0 +1,157 @@
+package com.downloadimages;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal HTTP/1.1 server that serves one body with an ETag, answers HEAD requests,
+ * honours Range/If-Range and advertises it with Accept-Ranges if enabled, and closes
+ * the first connection after {@link #cutAfterBytes} bytes of the body, or keeps it
+ * open without sending more after {@link #stallAfterBytes}. The first
+ * {@link #failRequests} requests are answered with {@link #failStatus} instead.
+ * Each request's headers are recorded in {@link #requests}, with the method under
+ * {@link #METHOD}.
+ */
+final class FlakyServer extends Thread {
+    static final String ETAG = "\"v1\"";
+    static final String METHOD = ":method";
+
+    final List<Map<String, String>> requests = new ArrayList<>();
+    final ServerSocket serverSocket;
+    final byte[] body;
+    volatile int cutAfterBytes = -1;
+    volatile boolean supportsRanges = true;
+    volatile int stallAfterBytes = -1;
+    volatile int failRequests;
+    volatile String failStatus = "503 Service Unavailable";
+
+    FlakyServer(byte[] body) throws IOException {
+        this.body = body;
+        this.serverSocket = new ServerSocket(0);
+        setDaemon(true);
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/file.bin";
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    /**
+     * @return the recorded requests that used the given method
+     */
+    List<Map<String, String>> requests(String method) {
+        List<Map<String, String>> result = new ArrayList<>();
+        synchronized (requests) {
+            for (Map<String, String> request : requests) {
+                if (method.equals(request.get(METHOD))) {
+                    result.add(request);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                try {
+                    serve(socket);
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        Map<String, String> headers = new HashMap<>();
+        String requestLine = reader.readLine();
+        if (requestLine == null) return;
+        headers.put(METHOD, requestLine.substring(0, requestLine.indexOf(' ')));
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        synchronized (requests) {
+            requests.add(headers);
+        }
+
+        OutputStream out = socket.getOutputStream();
+        if (failRequests > 0) {
+            failRequests--;
+            out.write(("HTTP/1.1 " + failStatus + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes("UTF-8"));
+            out.flush();
+            return;
+        }
+
+        int start = 0;
+        int end = body.length - 1;
+        boolean ranged = false;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (supportsRanges && range != null && (ifRange == null || ETAG.equals(ifRange))) {
+            int dash = range.indexOf('-');
+            start = Integer.parseInt(range.substring("bytes=".length(), dash));
+            if (dash < range.length() - 1) {
+                end = Math.min(end, Integer.parseInt(range.substring(dash + 1)));
+            }
+            ranged = true;
+        }
+        StringBuilder response = new StringBuilder();
+        if (ranged) {
+            response.append("HTTP/1.1 206 Partial Content\r\n")
+                    .append("Content-Range: bytes ").append(start).append('-')
+                    .append(end).append('/').append(body.length).append("\r\n");
+        } else {
+            response.append("HTTP/1.1 200 OK\r\n");
+        }
+        if (supportsRanges) {
+            response.append("Accept-Ranges: bytes\r\n");
+        }
+        response.append("ETag: ").append(ETAG).append("\r\n")
+                .append("Content-Length: ").append(end + 1 - start).append("\r\n")
+                .append("Connection: close\r\n\r\n");
+
+        out.write(response.toString().getBytes("UTF-8"));
+        if ("HEAD".equals(headers.get(METHOD))) {
+            out.flush();
+            return;
+        }
+        int length = end + 1 - start;
+        if (cutAfterBytes >= 0) {
+            length = Math.min(length, cutAfterBytes);
+            cutAfterBytes = -1;
+        }
+        if (stallAfterBytes >= 0) {
+            out.write(body, start, Math.min(length, stallAfterBytes));
+            out.flush();
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+                // closed
+            }
+            return;
+        }
+        out.write(body, start, length);
+        out.flush();
+    }
+}
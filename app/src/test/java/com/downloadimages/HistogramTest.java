@@ -0,0 +1,41 @@
+package com.downloadimages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsCoverTheirBounds() {
+        for (long value : new long[]{0, 1, 3, 4, 7, 8, 9, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(value + " above its bucket", value <= Histogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                assertTrue(value + " in the previous bucket", value > Histogram.upperBoundOf(bucket - 1));
+            }
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getMean());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getPercentile(50), 500 / Histogram.SUB_BUCKETS);
+        assertEquals(990, histogram.getPercentile(99), 990 / Histogram.SUB_BUCKETS);
+        assertEquals(1000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void ignoresMissingPhases() {
+        Histogram histogram = new Histogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+    }
+}
@@ -0,0 +1,141 @@
+package com.downloadimages;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+
+    /**
+     * Reserves on another thread, so a test can check whether the reservation waits.
+     */
+    private static final class Reserver extends Thread {
+        final MemoryBudget budget;
+        final long bytes;
+        final boolean body;
+        final MemoryBudget.Cancellation cancellation;
+        final CountDownLatch admitted = new CountDownLatch(1);
+        volatile MemoryBudget.Reservation reservation;
+
+        Reserver(MemoryBudget budget, long bytes, boolean body) {
+            this(budget, bytes, body, null);
+        }
+
+        Reserver(MemoryBudget budget, long bytes, boolean body, MemoryBudget.Cancellation cancellation) {
+            this.budget = budget;
+            this.bytes = bytes;
+            this.body = body;
+            this.cancellation = cancellation;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            reservation = body ? budget.reserveBody(bytes, cancellation) : budget.reserveDecode(bytes, cancellation);
+            admitted.countDown();
+        }
+
+        boolean isAdmitted(long millis) throws InterruptedException {
+            return admitted.await(millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void bodiesTakeAtMostHalf() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation first = budget.reserveBody(40);
+
+        Reserver second = new Reserver(budget, 20, true);
+        assertFalse(second.isAdmitted(100));
+        // decodes are not held up by the waiting body
+        MemoryBudget.Reservation decode = budget.reserveDecode(50);
+        assertEquals(90, budget.getUsed());
+
+        first.release();
+        first.release();
+        assertTrue(second.isAdmitted(1000));
+        assertEquals(70, budget.getUsed());
+        decode.release();
+        second.reservation.release();
+        assertEquals(0, budget.getUsed());
+        assertEquals(90, budget.getPeakUsed());
+        assertEquals(1, budget.getWaitCount());
+    }
+
+    @Test
+    public void oversizedDecodeRunsAloneInOrder() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation running = budget.reserveDecode(60);
+
+        Reserver oversized = new Reserver(budget, 500, false);
+        assertFalse(oversized.isAdmitted(100));
+        // would fit, but queues behind the oversized one
+        Reserver small = new Reserver(budget, 10, false);
+        assertFalse(small.isAdmitted(100));
+
+        running.release();
+        assertTrue(oversized.isAdmitted(1000));
+        assertFalse(small.isAdmitted(100));
+        oversized.reservation.release();
+        assertTrue(small.isAdmitted(1000));
+        assertEquals(500, budget.getPeakUsed());
+    }
+
+    @Test
+    public void cancelledWaiterGivesUpItsPlace() throws Exception {
+        MemoryBudget budget = new MemoryBudget(100);
+        MemoryBudget.Reservation running = budget.reserveBody(40);
+        final AtomicBoolean firstCancelled = new AtomicBoolean();
+        final AtomicBoolean secondCancelled = new AtomicBoolean();
+        MemoryBudget.Cancellation first = new MemoryBudget.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return firstCancelled.get();
+            }
+        };
+        MemoryBudget.Cancellation second = new MemoryBudget.Cancellation() {
+            @Override
+            public boolean isCancelled() {
+                return secondCancelled.get();
+            }
+        };
+
+        Reserver head = new Reserver(budget, 20, true, first);
+        assertFalse(head.isAdmitted(100));
+        Reserver middle = new Reserver(budget, 20, true, second);
+        assertFalse(middle.isAdmitted(100));
+        Reserver last = new Reserver(budget, 20, true);
+        assertFalse(last.isAdmitted(100));
+
+        // a waiter behind the head of the queue is skipped later
+        secondCancelled.set(true);
+        budget.wakeWaiters();
+        assertTrue(middle.isAdmitted(1000));
+        assertNull(middle.reservation);
+        firstCancelled.set(true);
+        budget.wakeWaiters();
+        assertTrue(head.isAdmitted(1000));
+        assertNull(head.reservation);
+        assertFalse("the budget is still in use", last.isAdmitted(100));
+
+        running.release();
+        assertTrue(last.isAdmitted(1000));
+        assertEquals(20, budget.getUsed());
+    }
+
+    @Test
+    public void buffersOnlyKnownLengthsUpToAnEighth() {
+        MemoryBudget budget = new MemoryBudget(800);
+        assertTrue(budget.canBuffer(0));
+        assertTrue(budget.canBuffer(100));
+        assertFalse(budget.canBuffer(101));
+        assertFalse(budget.canBuffer(-1));
+        budget.setCapacity(1600);
+        assertTrue(budget.canBuffer(200));
+    }
+}
@@ -0,0 +1,131 @@
+package com.downloadimages;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MemoryPressureTest {
+
+    private static final long INTERVAL_MILLIS = 1000;
+
+    /**
+     * Stands in for {@link BitmapMemoryCache} and {@link BitmapPool}, which need the
+     * Android runtime.
+     */
+    private static final class FakeCache implements MemoryPressure.Trimmable {
+        final int maxSize;
+        int sizeLimit;
+
+        FakeCache(int maxSize) {
+            this.maxSize = maxSize;
+            this.sizeLimit = maxSize;
+        }
+
+        @Override
+        public int maxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public void setSizeLimit(int sizeLimit) {
+            this.sizeLimit = sizeLimit;
+        }
+    }
+
+    private FakeCache memoryCache;
+    private FakeCache bitmapPool;
+    private DecodeStage decodeStage;
+    private DownloadScheduler scheduler;
+    private MemoryBudget memoryBudget;
+    private MemoryPressure pressure;
+
+    @Before
+    public void setUp() {
+        memoryCache = new FakeCache(8000);
+        bitmapPool = new FakeCache(4000);
+        decodeStage = new DecodeStage(4);
+        scheduler = new DownloadScheduler();
+        memoryBudget = new MemoryBudget(1000);
+        pressure = new MemoryPressure(memoryCache, bitmapPool, decodeStage, scheduler, memoryBudget,
+                INTERVAL_MILLIS);
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void mapsTrimLevelsToSeverities() {
+        assertEquals(MemoryPressure.Severity.MODERATE,
+                MemoryPressure.severityOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(MemoryPressure.Severity.LOW,
+                MemoryPressure.severityOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(MemoryPressure.Severity.CRITICAL,
+                MemoryPressure.severityOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(MemoryPressure.Severity.MODERATE,
+                MemoryPressure.severityOf(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(MemoryPressure.Severity.LOW,
+                MemoryPressure.severityOf(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(MemoryPressure.Severity.CRITICAL,
+                MemoryPressure.severityOf(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void tightensLimitsPerSeverity() {
+        pressure.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, millis(0));
+        assertEquals(4000, memoryCache.sizeLimit);
+        assertEquals(2000, bitmapPool.sizeLimit);
+        assertTrue(scheduler.isLowPriorityPaused());
+        assertEquals(4, decodeStage.getThreadCount());
+
+        pressure.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW, millis(10));
+        assertEquals(2000, memoryCache.sizeLimit);
+        assertEquals(0, bitmapPool.sizeLimit);
+        assertEquals(2, decodeStage.getThreadCount());
+        assertEquals(500, memoryBudget.getCapacity());
+
+        // a milder level does not relax the limits
+        pressure.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, millis(20));
+        assertEquals(MemoryPressure.Severity.LOW, pressure.getSeverity());
+
+        pressure.onLowMemory(millis(30));
+        assertEquals(0, memoryCache.sizeLimit);
+        assertEquals(1, decodeStage.getThreadCount());
+        assertEquals(250, memoryBudget.getCapacity());
+
+        assertEquals(2, pressure.getTrimCount(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(1, pressure.getTrimCount(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(0, pressure.getTrimCount(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+        assertEquals(1, pressure.getLowMemoryCount());
+    }
+
+    @Test
+    public void recoversOneStepPerQuietInterval() {
+        pressure.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL, millis(0));
+
+        assertTrue(pressure.recover(millis(500)));
+        assertEquals(MemoryPressure.Severity.CRITICAL, pressure.getSeverity());
+        assertTrue(pressure.recover(millis(1000)));
+        assertEquals(MemoryPressure.Severity.LOW, pressure.getSeverity());
+        assertEquals(2, decodeStage.getThreadCount());
+        // another signal restarts the wait
+        pressure.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE, millis(1500));
+        assertTrue(pressure.recover(millis(2000)));
+        assertEquals(MemoryPressure.Severity.LOW, pressure.getSeverity());
+        assertTrue(pressure.recover(millis(2500)));
+        assertEquals(MemoryPressure.Severity.MODERATE, pressure.getSeverity());
+        assertFalse(pressure.recover(millis(3500)));
+
+        assertEquals(MemoryPressure.Severity.NONE, pressure.getSeverity());
+        assertEquals(8000, memoryCache.sizeLimit);
+        assertEquals(4000, bitmapPool.sizeLimit);
+        assertFalse(scheduler.isLowPriorityPaused());
+        assertEquals(4, decodeStage.getThreadCount());
+        assertEquals(1000, memoryBudget.getCapacity());
+    }
+}
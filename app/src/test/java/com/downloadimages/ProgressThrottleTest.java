@@ -0,0 +1,71 @@
+package com.downloadimages;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProgressThrottleTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void coalescesChunksByTimeAndPercent() {
+        ProgressThrottle throttle = new ProgressThrottle(0);
+        long total = 5 * 1024 * 1024;
+        int events = 0;
+        // 8 KB chunks arriving every millisecond
+        long now = 0;
+        for (long read = 8192; read < total; read += 8192) {
+            now += MS;
+            if (throttle.update(read, total, now) != null) events++;
+        }
+        assertNotNull(throttle.update(total, total, now + MS));
+        // 640 chunks over 640 ms, at most one event per 100 ms
+        assertTrue("events: " + events, events > 0 && events <= 7);
+    }
+
+    @Test
+    public void suppressesUpdatesBelowOnePercent() {
+        ProgressThrottle throttle = new ProgressThrottle(0);
+        assertNotNull(throttle.update(10000, 100000, 200 * MS));
+        assertNull(throttle.update(10500, 100000, 400 * MS));
+        assertNotNull(throttle.update(11000, 100000, 600 * MS));
+    }
+
+    @Test
+    public void alwaysEmitsTheLastByteOnce() {
+        ProgressThrottle throttle = new ProgressThrottle(0);
+        ProgressEvent event = throttle.update(1000, 1000, MS);
+        assertNotNull(event);
+        assertEquals(100, event.getPercent());
+        assertEquals(0, event.getEtaMillis());
+        assertNull(throttle.update(1000, 1000, 2 * MS));
+    }
+
+    @Test
+    public void reportsRatesAndEta() {
+        ProgressThrottle throttle = new ProgressThrottle(0);
+        ProgressEvent first = throttle.update(100000, 1000000, 1000 * MS);
+        assertEquals(100000, first.getAverageBytesPerSecond());
+        assertEquals(100000, first.getInstantBytesPerSecond());
+        assertEquals(9000, first.getEtaMillis());
+
+        ProgressEvent second = throttle.update(400000, 1000000, 2000 * MS);
+        assertEquals(300000, second.getInstantBytesPerSecond());
+        assertEquals(200000, second.getAverageBytesPerSecond());
+        assertTrue(second.getEtaMillis() > 0 && second.getEtaMillis() < 6000);
+    }
+
+    @Test
+    public void indeterminateEventsAreOnlyLimitedByTime() {
+        ProgressThrottle throttle = new ProgressThrottle(0);
+        ProgressEvent event = throttle.update(5000, -1, 100 * MS);
+        assertNotNull(event);
+        assertTrue(event.isIndeterminate());
+        assertEquals(-1, event.getPercent());
+        assertEquals(-1, event.getEtaMillis());
+        assertEquals(-1, event.getTotalBytes());
+        assertNull(throttle.update(6000, -1, 150 * MS));
+        assertNotNull(throttle.update(6000, -1, 200 * MS));
+    }
+}
@@ -0,0 +1,186 @@
+package com.downloadimages;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link ResumableDownload} against a local HTTP stand-in that can cut the
+ * connection in the middle of the body.
+ */
+public class ResumableDownloadTest {
+
+    private FlakyServer server;
+    private File target;
+    private byte[] body;
+
+    @Before
+    public void setUp() throws Exception {
+        body = new byte[100 * 1024];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        target = File.createTempFile("resumable", ".bin");
+        target.delete();
+        server = new FlakyServer(body);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        target.delete();
+        new File(target.getPath() + ResumableDownload.PART_SUFFIX).delete();
+        new File(target.getPath() + ResumableDownload.STATE_SUFFIX).delete();
+    }
+
+    @Test
+    public void resumesWithRangeAfterConnectionDrop() throws Exception {
+        server.cutAfterBytes = 30 * 1024;
+
+        ResumableDownload.Result result = new ResumableDownload(server.url(), target).run();
+
+        assertArrayEquals(body, readFile(target));
+        assertEquals(2, result.getAttempts());
+        assertEquals(2, server.requests.size());
+        assertNull(server.requests.get(0).get("range"));
+        assertEquals("bytes=" + 30 * 1024 + "-", server.requests.get(1).get("range"));
+        assertEquals(FlakyServer.ETAG, server.requests.get(1).get("if-range"));
+        assertFalse(new File(target.getPath() + ResumableDownload.PART_SUFFIX).exists());
+    }
+
+    @Test
+    public void resumesPartialFileFromEarlierRun() throws Exception {
+        server.cutAfterBytes = 40 * 1024;
+        try {
+            new ResumableDownload(server.url(), target).setMaxAttempts(1).run();
+            fail("the connection was cut");
+        } catch (IOException expected) {
+        }
+        assertFalse(target.exists());
+
+        ResumableDownload.Result result = new ResumableDownload(server.url(), target).run();
+
+        assertArrayEquals(body, readFile(target));
+        assertEquals(40 * 1024, result.getResumedFrom());
+    }
+
+    @Test
+    public void restartsWhenServerIgnoresRange() throws Exception {
+        server.cutAfterBytes = 30 * 1024;
+        server.supportsRanges = false;
+
+        ResumableDownload.Result result = new ResumableDownload(server.url(), target).run();
+
+        assertArrayEquals(body, readFile(target));
+        assertEquals(2, result.getAttempts());
+    }
+
+    @Test
+    public void cancelEndsBlockedReadAndKeepsPartialFile() throws Exception {
+        server.stallAfterBytes = 20 * 1024;
+        final ResumableDownload download = new ResumableDownload(server.url(), target);
+        final File partFile = new File(target.getPath() + ResumableDownload.PART_SUFFIX);
+        Thread canceller = new Thread() {
+            @Override
+            public void run() {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (partFile.length() < 20 * 1024 && System.currentTimeMillis() < deadline) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                download.cancel();
+            }
+        };
+        canceller.start();
+
+        long start = System.currentTimeMillis();
+        try {
+            download.run();
+            fail("the download was cancelled");
+        } catch (IOException expected) {
+        }
+        canceller.join();
+
+        // the server stalls for 10 s, the read must not wait for it
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(download.isCancelled());
+        assertEquals(1, server.requests.size());
+        assertEquals(20 * 1024, partFile.length());
+        assertFalse(target.exists());
+    }
+
+    @Test
+    public void retriesTransientStatusAfterBackoff() throws Exception {
+        server.failRequests = 2;
+
+        ResumableDownload.Result result = new ResumableDownload(server.url(), target)
+                .setRetryPolicy(new RetryPolicy(3, 10, 20, 1000))
+                .run();
+
+        assertArrayEquals(body, readFile(target));
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, server.requests.size());
+    }
+
+    @Test
+    public void doesNotRetryPermanentStatus() throws Exception {
+        server.failRequests = 5;
+        server.failStatus = "404 Not Found";
+        try {
+            new ResumableDownload(server.url(), target)
+                    .setRetryPolicy(new RetryPolicy(3, 10, 20, 1000))
+                    .run();
+            fail("the file does not exist");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, server.requests.size());
+    }
+
+    @Test
+    public void openCircuitStopsFurtherConnections() throws Exception {
+        server.failRequests = 5;
+        CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        try {
+            new ResumableDownload(server.url(), target)
+                    .setRetryPolicy(new RetryPolicy(3, 10, 20, 1000))
+                    .setCircuitBreaker(breaker)
+                    .run();
+            fail("the host is failing");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, server.requests.size());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState("127.0.0.1"));
+    }
+
+    @Test
+    public void parsesContentRange() {
+        assertArrayEquals(new long[]{100, 1000}, ResumableDownload.parseContentRange("bytes 100-999/1000"));
+        assertArrayEquals(new long[]{0, -1}, ResumableDownload.parseContentRange("bytes 0-9/*"));
+        assertNull(ResumableDownload.parseContentRange("items 0-9/10"));
+        assertNull(ResumableDownload.parseContentRange(null));
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        byte[] result = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < result.length) {
+                offset += in.read(result, offset, result.length - offset);
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,66 @@
+package com.downloadimages;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void backoffGrowsExponentiallyUpToTheCap() {
+        RetryPolicy policy = new RetryPolicy(10, 500, 8000, 30000);
+        assertEquals(500, policy.backoffMillis(1, 0.999999), 1);
+        assertEquals(1000, policy.backoffMillis(2, 0.999999), 1);
+        assertEquals(4000, policy.backoffMillis(4, 0.999999), 1);
+        assertEquals(8000, policy.backoffMillis(6, 0.999999), 1);
+        assertEquals(8000, policy.backoffMillis(1000, 0.999999), 1);
+        assertEquals(0, policy.backoffMillis(3, 0));
+        assertEquals(1000, policy.backoffMillis(3, 0.5));
+    }
+
+    @Test
+    public void stopsAfterTheLastAttempt() {
+        RetryPolicy policy = new RetryPolicy(3, 500, 8000, 30000);
+        assertTrue(policy.retryDelayMillis(2, null, 0) >= 0);
+        assertEquals(-1, policy.retryDelayMillis(3, null, 0));
+        assertEquals(-1, RetryPolicy.NONE.retryDelayMillis(1, null, 0));
+    }
+
+    @Test
+    public void honorsRetryAfterUpToTheLimit() {
+        RetryPolicy policy = new RetryPolicy(3, 500, 8000, 30000);
+        long delay = policy.retryDelayMillis(1, "20", 0);
+        assertTrue(delay >= 20000 && delay < 20500);
+        assertEquals(-1, policy.retryDelayMillis(1, "120", 0));
+    }
+
+    @Test
+    public void parsesRetryAfter() {
+        assertEquals(-1, RetryPolicy.retryAfterMillis(null, 0));
+        assertEquals(-1, RetryPolicy.retryAfterMillis("soon", 0));
+        assertEquals(5000, RetryPolicy.retryAfterMillis(" 5 ", 0));
+        // Wed, 21 Oct 2015 07:28:00 GMT
+        long date = 1445412480000L;
+        assertEquals(30000, RetryPolicy.retryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT", date - 30000));
+        assertEquals(0, RetryPolicy.retryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT", date + 30000));
+    }
+
+    @Test
+    public void classifiesErrors() {
+        assertTrue(RetryPolicy.isTransient(503));
+        assertTrue(RetryPolicy.isTransient(429));
+        assertTrue(RetryPolicy.isTransient(408));
+        assertFalse(RetryPolicy.isTransient(501));
+        assertFalse(RetryPolicy.isTransient(404));
+        assertFalse(RetryPolicy.isTransient(200));
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException()));
+        assertTrue(RetryPolicy.isTransient(new IOException("unexpected end of stream")));
+        assertFalse(RetryPolicy.isTransient(new SSLHandshakeException("bad certificate")));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException()));
+    }
+}
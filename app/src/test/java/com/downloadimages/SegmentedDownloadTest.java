@@ -0,0 +1,200 @@
+package com.downloadimages;
+
+import com.downloadimages.utils.SharedHttpClient;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link SegmentedDownload} against the {@link FlakyServer} stand-in.
+ */
+public class SegmentedDownloadTest {
+
+    private static final int SEGMENT = (int) SegmentedDownload.MIN_SEGMENT_SIZE;
+
+    private FlakyServer server;
+    private File target;
+
+    @Before
+    public void setUp() throws Exception {
+        target = File.createTempFile("segmented", ".bin");
+        target.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close();
+        }
+        target.delete();
+        new File(target.getPath() + ResumableDownload.PART_SUFFIX).delete();
+        new File(target.getPath() + ResumableDownload.STATE_SUFFIX).delete();
+    }
+
+    private byte[] serve(int length) throws IOException {
+        byte[] body = new byte[length];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (i * 31 + i / 4096);
+        }
+        server = new FlakyServer(body);
+        server.start();
+        return body;
+    }
+
+    private Set<String> ranges() {
+        Set<String> ranges = new HashSet<>();
+        for (Map<String, String> request : server.requests("GET")) {
+            ranges.add(request.get("range"));
+        }
+        return ranges;
+    }
+
+    @Test
+    public void splitsIntoRangesAndAssemblesFile() throws Exception {
+        // the last segment also takes the remainder
+        byte[] body = serve(4 * SEGMENT + 3);
+
+        SegmentedDownload.Result result = new SegmentedDownload(server.url(), target, 4).run();
+
+        assertEquals(4, result.getSegmentCount());
+        assertEquals(body.length, result.getTotalBytes());
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        assertEquals(1, server.requests("HEAD").size());
+        Set<String> expected = new HashSet<>();
+        expected.add("bytes=0-" + (SEGMENT - 1));
+        expected.add("bytes=" + SEGMENT + "-" + (2 * SEGMENT - 1));
+        expected.add("bytes=" + 2 * SEGMENT + "-" + (3 * SEGMENT - 1));
+        expected.add("bytes=" + 3 * SEGMENT + "-" + (body.length - 1));
+        assertEquals(expected, ranges());
+        for (Map<String, String> request : server.requests("GET")) {
+            assertEquals(FlakyServer.ETAG, request.get("if-range"));
+        }
+        assertFalse(new File(target.getPath() + ".seg").exists());
+    }
+
+    @Test
+    public void keepsSegmentsAboveMinimumSize() throws Exception {
+        byte[] body = serve(3 * SEGMENT - 1);
+
+        SegmentedDownload.Result result = new SegmentedDownload(server.url(), target, 8).run();
+
+        assertEquals(2, result.getSegmentCount());
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        assertEquals(2, ranges().size());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutAcceptRanges() throws Exception {
+        byte[] body = serve(4 * SEGMENT);
+        server.supportsRanges = false;
+
+        SegmentedDownload.Result result = new SegmentedDownload(server.url(), target, 4).run();
+
+        assertEquals(1, result.getSegmentCount());
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        List<Map<String, String>> gets = server.requests("GET");
+        assertEquals(1, gets.size());
+        assertNull(gets.get(0).get("range"));
+    }
+
+    @Test
+    public void fallsBackToSingleStreamForSmallFile() throws Exception {
+        byte[] body = serve(SEGMENT + 1);
+
+        SegmentedDownload.Result result = new SegmentedDownload(server.url(), target, 4).run();
+
+        assertEquals(1, result.getSegmentCount());
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        assertEquals(1, server.requests("GET").size());
+    }
+
+    @Test
+    public void failedSegmentLeavesNoFile() throws Exception {
+        serve(4 * SEGMENT);
+        server.cutAfterBytes = 1000;
+        try {
+            new SegmentedDownload(server.url(), target, 4).run();
+            fail("a segment was cut short");
+        } catch (IOException expected) {
+        }
+        assertFalse(target.exists());
+        assertFalse(new File(target.getPath() + ".seg").exists());
+    }
+
+    @Test
+    public void retriesTransientProbeFailure() throws Exception {
+        byte[] body = serve(4 * SEGMENT);
+        server.failRequests = 1;
+
+        SegmentedDownload.Result result = new SegmentedDownload(server.url(), target, 4)
+                .setRetryPolicy(new RetryPolicy(3, 10, 20, 1000))
+                .run();
+
+        assertEquals(4, result.getSegmentCount());
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        assertEquals(2, server.requests("HEAD").size());
+    }
+
+    @Test
+    public void resumesDroppedSegment() throws Exception {
+        byte[] body = serve(4 * SEGMENT);
+        server.cutAfterBytes = 1000;
+
+        SegmentedDownload.Result result = new SegmentedDownload(server.url(), target, 4)
+                .setRetryPolicy(new RetryPolicy(3, 10, 20, 1000))
+                .run();
+
+        assertEquals(4, result.getSegmentCount());
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        List<Map<String, String>> gets = server.requests("GET");
+        assertEquals(5, gets.size());
+        // the retry only asks for what the dropped connection did not deliver
+        List<Integer> offsets = new ArrayList<>();
+        for (Map<String, String> request : gets) {
+            String range = request.get("range");
+            offsets.add(Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-'))) % SEGMENT);
+        }
+        assertEquals(offsets.toString(), 1, Collections.frequency(offsets, 1000));
+    }
+
+    @Test
+    public void reusesProbeOfCaller() throws Exception {
+        byte[] body = serve(4 * SEGMENT);
+        Response head = SharedHttpClient.get().newCall(new Request.Builder().url(server.url()).head()
+                .header("Accept-Encoding", "identity").build()).execute();
+        head.close();
+
+        new SegmentedDownload(server.url(), target, 4).run(head);
+
+        assertArrayEquals(body, ResumableDownloadTest.readFile(target));
+        assertEquals(1, server.requests("HEAD").size());
+    }
+
+    @Test
+    public void openCircuitSendsNoRequest() throws Exception {
+        serve(4 * SEGMENT);
+        CircuitBreaker breaker = new CircuitBreaker(1, 60000);
+        breaker.onFailure("127.0.0.1", System.nanoTime());
+        try {
+            new SegmentedDownload(server.url(), target, 4).setCircuitBreaker(breaker).run();
+            fail("the host is failing");
+        } catch (IOException expected) {
+        }
+        assertTrue(server.requests.isEmpty());
+    }
+}
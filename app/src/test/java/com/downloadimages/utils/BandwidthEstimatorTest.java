@@ -0,0 +1,61 @@
+package com.downloadimages.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BandwidthEstimatorTest {
+
+    private static final long ONE_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void averagesSamplesInKilobitsPerSecond() {
+        BandwidthEstimator estimator = new BandwidthEstimator();
+        estimator.addSample(125 * 1024, ONE_SECOND);
+
+        assertEquals(125 * 1024 * 8 / 1000.0, estimator.getKbps(), 0.01);
+        assertEquals(125 * 1024, estimator.getBytesPerSecond(), 1);
+        assertEquals(BandwidthEstimator.Quality.GOOD, estimator.getQuality());
+    }
+
+    @Test
+    public void ignoresSamplesTooSmallToMeasureBandwidth() {
+        BandwidthEstimator estimator = new BandwidthEstimator();
+        estimator.addSample(BandwidthEstimator.MIN_SAMPLE_BYTES - 1, 1);
+
+        assertEquals(-1, estimator.getKbps(), 0);
+        assertEquals(BandwidthEstimator.Quality.UNKNOWN, estimator.getQuality());
+    }
+
+    @Test
+    public void changesQualityOnlyAfterConsecutiveSamples() {
+        BandwidthEstimator estimator = new BandwidthEstimator();
+        final List<BandwidthEstimator.Quality> changes = new ArrayList<>();
+        estimator.register(new BandwidthEstimator.Listener() {
+            @Override
+            public void onQualityChanged(BandwidthEstimator.Quality quality, double kbps) {
+                changes.add(quality);
+            }
+        });
+
+        // 100 KB/s is 800 kbps
+        estimator.addSample(100 * 1000, ONE_SECOND);
+        assertEquals(BandwidthEstimator.Quality.GOOD, estimator.getQuality());
+        // 80 kbps samples pull the average down, but the class does not flip at once
+        estimator.addSample(2 * 1000 * 1000, 200 * ONE_SECOND);
+        estimator.addSample(2 * 1000 * 1000, 200 * ONE_SECOND);
+        assertEquals(BandwidthEstimator.Quality.GOOD, estimator.getQuality());
+        estimator.addSample(2 * 1000 * 1000, 200 * ONE_SECOND);
+        estimator.addSample(2 * 1000 * 1000, 200 * ONE_SECOND);
+        estimator.addSample(2 * 1000 * 1000, 200 * ONE_SECOND);
+
+        assertEquals(BandwidthEstimator.Quality.MODERATE, estimator.getQuality());
+        assertEquals(2, changes.size());
+        assertEquals(BandwidthEstimator.Quality.GOOD, changes.get(0));
+        assertEquals(BandwidthEstimator.Quality.MODERATE, changes.get(1));
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * JVM replacement for the framework class, whose thread priority calls are
+ * implemented natively. Priorities are ignored.
+ */
+public final class Process {
+
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(int priority) {
+    }
+}
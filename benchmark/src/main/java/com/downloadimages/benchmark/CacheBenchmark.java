@@ -0,0 +1,132 @@
+package com.downloadimages.benchmark;
+
+import android.util.LruCache;
+
+import com.downloadimages.DiskCache;
+import com.downloadimages.utils.Utility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the lookups done before a download starts: the memory cache, the disk
+ * cache for a hit and a miss, and the SHA-256 key the disk cache derives from
+ * every URL. The memory cache is an {@link LruCache} of byte arrays here, Bitmaps
+ * cannot be created on the JVM, but the lookup is the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int ENTRIES = 500;
+
+    private final String[] urls = new String[ENTRIES];
+    private final String[] missingUrls = new String[ENTRIES];
+    private final AtomicInteger next = new AtomicInteger();
+    private File directory;
+    private DiskCache diskCache;
+    private LruCache<String, byte[]> memoryCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = File.createTempFile("cache", "");
+        directory.delete();
+        diskCache = DiskCache.open(directory, DiskCache.DEFAULT_MAX_SIZE);
+        memoryCache = new LruCache<String, byte[]>(ENTRIES * 2 * 1024) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+        byte[] image = LocalHttpServer.randomBytes(1024);
+        for (int i = 0; i < ENTRIES; i++) {
+            urls[i] = "https://images.example.com/photos/" + i + ".jpg";
+            missingUrls[i] = "https://images.example.com/missing/" + i + ".jpg";
+            DiskCache.Editor editor = diskCache.edit(urls[i]);
+            OutputStream out = editor.newOutputStream();
+            try {
+                out.write(image);
+            } finally {
+                out.close();
+            }
+            editor.commit(new DiskCache.Metadata(urls[i], "\"" + i + "\"", null, Long.MAX_VALUE)).close();
+            memoryCache.put(urls[i], image);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private int nextIndex() {
+        return (next.getAndIncrement() & Integer.MAX_VALUE) % ENTRIES;
+    }
+
+    @Benchmark
+    public Object memoryHit() {
+        return memoryCache.get(urls[nextIndex()]);
+    }
+
+    /**
+     * Looks the entry up and closes it again, as a reader does once it read the body.
+     */
+    private Object diskHit(String url) {
+        DiskCache.Entry entry = diskCache.get(url);
+        if (entry != null) {
+            entry.close();
+        }
+        return entry;
+    }
+
+    @Benchmark
+    public Object diskHit() {
+        return diskHit(urls[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object diskMiss() {
+        return diskCache.get(missingUrls[nextIndex()]);
+    }
+
+    @Benchmark
+    public String diskKey() {
+        return Utility.sha256Hex(urls[nextIndex()]);
+    }
+
+    /**
+     * The same disk hits from the scheduler's default number of threads, which
+     * contend for the cache lock.
+     */
+    @Benchmark
+    @Threads(6)
+    public Object diskHitContended() {
+        return diskHit(urls[nextIndex()]);
+    }
+}
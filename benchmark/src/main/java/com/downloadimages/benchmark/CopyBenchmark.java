@@ -0,0 +1,210 @@
+package com.downloadimages.benchmark;
+
+import com.downloadimages.utils.FileTee;
+import com.downloadimages.utils.SharedHttpClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Compares the ways the app has copied a response body: byte arrays of different
+ * sizes into a file, the 8 KB {@link BufferedInputStream} into a
+ * {@link ByteArrayOutputStream}, {@link FileTee} with its SHA-256, a direct
+ * {@link ByteBuffer} and {@link FileChannel#transferFrom}. The body is read either
+ * from memory, which isolates the copy itself, or from the local server through
+ * the shared OkHttp client, which is what a download actually does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CopyBenchmark {
+
+    public enum Source {
+        MEMORY, HTTP
+    }
+
+    @Param({"65536", "1048576", "8388608"})
+    int size;
+
+    @Param({"MEMORY", "HTTP"})
+    Source source;
+
+    private byte[] body;
+    private LocalHttpServer server;
+    private String url;
+    private File target;
+
+    @Setup
+    public void setUp() throws IOException {
+        body = LocalHttpServer.randomBytes(size);
+        if (source == Source.HTTP) {
+            server = new LocalHttpServer(size);
+            url = server.url(size, 0);
+        }
+        target = File.createTempFile("copy", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+        target.delete();
+    }
+
+    @Benchmark
+    public long array1k() throws IOException {
+        return copyArray(1024);
+    }
+
+    /**
+     * The loop {@code ImageDownloader.downloadFile} used.
+     */
+    @Benchmark
+    public long array4k() throws IOException {
+        return copyArray(4 * 1024);
+    }
+
+    @Benchmark
+    public long array8k() throws IOException {
+        return copyArray(8 * 1024);
+    }
+
+    /**
+     * The in-memory path decoded with {@code BitmapFactory.decodeByteArray}.
+     */
+    @Benchmark
+    public int bufferedToMemory8k() throws IOException {
+        InputStream in = open();
+        try {
+            InputStream buffered = new BufferedInputStream(in, 8192);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = buffered.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray().length;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The path every cached download takes, a 16 KB heap buffer plus SHA-256.
+     */
+    @Benchmark
+    public long fileTee() throws IOException {
+        InputStream in = open();
+        try {
+            return FileTee.copy(in, target, size, null).getByteCount();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long directBuffer64k() throws IOException {
+        InputStream in = open();
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            ReadableByteChannel source = Channels.newChannel(in);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            long total = 0;
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                total += count;
+            }
+            return total;
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        InputStream in = open();
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            ReadableByteChannel source = Channels.newChannel(in);
+            FileChannel channel = out.getChannel();
+            long total = 0;
+            long count;
+            while ((count = channel.transferFrom(source, total, Long.MAX_VALUE)) > 0) {
+                total += count;
+            }
+            return total;
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private long copyArray(int bufferSize) throws IOException {
+        InputStream in = open();
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[bufferSize];
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            return total;
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private InputStream open() throws IOException {
+        if (source == Source.MEMORY) {
+            return new ByteArrayInputStream(body);
+        }
+        final Response response = SharedHttpClient.get().newCall(new Request.Builder().url(url).build()).execute();
+        return new FilterInputStream(response.body().byteStream()) {
+            @Override
+            public void close() {
+                response.close();
+            }
+        };
+    }
+}
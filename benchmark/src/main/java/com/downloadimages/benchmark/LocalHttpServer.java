@@ -0,0 +1,86 @@
+package com.downloadimages.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process HTTP server on the loopback interface, so network benchmarks do not
+ * depend on a real host. {@code GET /bytes/<n>} returns <i>n</i> random bytes with
+ * a Content-Length; an optional {@code ?delay=<ms>} query holds the response back
+ * to simulate server latency.
+ */
+final class LocalHttpServer {
+
+    static {
+        // without it some body sizes stall on Nagle's algorithm and delayed ACKs,
+        // adding 40 ms to every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final byte[] payload;
+
+    LocalHttpServer(int maxBodySize) throws IOException {
+        payload = randomBytes(maxBodySize);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+        server.createContext("/bytes/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the URL serving the given number of bytes, at most the size this
+     * server was created with
+     */
+    String url(int size, int delayMillis) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/bytes/" + size
+                + (delayMillis > 0 ? "?delay=" + delayMillis : "");
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            int size = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.startsWith("delay=")) {
+                Thread.sleep(Integer.parseInt(query.substring("delay=".length())));
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, size);
+            OutputStream body = exchange.getResponseBody();
+            body.write(payload, 0, size);
+            body.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        // fixed seed, incompressible but identical across runs
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
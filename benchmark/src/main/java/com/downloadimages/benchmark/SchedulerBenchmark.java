@@ -0,0 +1,128 @@
+package com.downloadimages.benchmark;
+
+import com.downloadimages.DownloadScheduler;
+import com.downloadimages.utils.SharedHttpClient;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Runs a batch of downloads through {@link DownloadScheduler} and the shared
+ * OkHttp client against the local server, once with a fast server and once with
+ * 20 ms of server latency, for several concurrency limits. {@link #submitNoOp()}
+ * measures the scheduler's own overhead per task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    private static final int BATCH = 32;
+    private static final int BODY_SIZE = 32 * 1024;
+    private static final int LATENCY_MILLIS = 20;
+
+    @Param({"1", "2", "4", "6", "8", "16"})
+    int maxConcurrent;
+
+    private LocalHttpServer server;
+    private DownloadScheduler scheduler;
+    private String fastUrl;
+    private String slowUrl;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LocalHttpServer(BODY_SIZE);
+        fastUrl = server.url(BODY_SIZE, 0);
+        slowUrl = server.url(BODY_SIZE, LATENCY_MILLIS);
+        // every request goes to the same host, so only the global limit applies
+        scheduler = new DownloadScheduler(maxConcurrent, maxConcurrent);
+        SharedHttpClient.setMaxRequestsPerHost(maxConcurrent);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * @return the number of bytes downloaded by the batch
+     */
+    @Benchmark
+    public long fetchBatch() throws InterruptedException {
+        return runBatch(fastUrl);
+    }
+
+    @Benchmark
+    public long fetchBatchWithLatency() throws InterruptedException {
+        return runBatch(slowUrl);
+    }
+
+    /**
+     * Submits {@value #BATCH} tasks that do nothing and waits for them.
+     */
+    @Benchmark
+    public long submitNoOp() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            scheduler.submit(new DownloadScheduler.Task(fastUrl, DownloadScheduler.Priority.NORMAL) {
+                @Override
+                protected void execute() {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return done.getCount();
+    }
+
+    private long runBatch(final String url) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(BATCH);
+        final AtomicLong bytes = new AtomicLong();
+        for (int i = 0; i < BATCH; i++) {
+            scheduler.submit(new DownloadScheduler.Task(url, DownloadScheduler.Priority.NORMAL) {
+                @Override
+                protected void execute() {
+                    try {
+                        Response response = SharedHttpClient.get()
+                                .newCall(new Request.Builder().url(url).build()).execute();
+                        try {
+                            bytes.addAndGet(response.body().bytes().length);
+                        } finally {
+                            response.close();
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        if (bytes.get() != (long) BATCH * BODY_SIZE) {
+            throw new IllegalStateException("incomplete batch: " + bytes.get() + " bytes");
+        }
+        return bytes.get();
+    }
+}